@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import jsr166y.ForkJoinPool;
+import jsr166y.ForkJoinTask;
+import jsr166y.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Buffers a set of service area lines into a single polygon. Lines are
+ * buffered in groups (each group in one buffer operation) and the group
+ * polygons are merged pairwise up a balanced tree, so each union works on two
+ * polygons of similar size rather than folding every edge into one growing
+ * polygon. The tree can be evaluated sequentially or by ForkJoin workers.
+ *
+ * @author amacaulay
+ */
+public final class CascadedBuffer {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(CascadedBuffer.class);
+  private static final int GROUP_SIZE = 64;
+
+  private CascadedBuffer() {
+  }
+
+  /**
+   * Buffers and unions lines on the calling thread
+   *
+   * @param lines
+   *          The lines to buffer
+   * @param distance
+   *          The buffer distance
+   * @return The buffer polygon, or null if there are no lines
+   */
+  public static Geometry buffer(Collection<? extends Geometry> lines,
+      double distance) {
+    if (lines.isEmpty()) {
+      return null;
+    }
+    List<Geometry> list = new ArrayList<Geometry>(lines);
+    return new BufferUnionTask(list, 0, list.size(), distance).union();
+  }
+
+  /**
+   * Buffers and unions lines on a ForkJoinPool, groups are buffered and pairs
+   * of polygons merged in parallel
+   *
+   * @param lines
+   *          The lines to buffer
+   * @param distance
+   *          The buffer distance
+   * @param pool
+   *          The pool to run on, the calling thread may be one of its workers
+   * @return The buffer polygon, or null if there are no lines
+   */
+  public static Geometry buffer(Collection<? extends Geometry> lines,
+      double distance, ForkJoinPool pool) {
+    if (lines.isEmpty()) {
+      return null;
+    }
+    List<Geometry> list = new ArrayList<Geometry>(lines);
+    BufferUnionTask task = new BufferUnionTask(list, 0, list.size(), distance);
+    if (ForkJoinTask.getPool() == pool) {
+      return task.invoke();
+    }
+    return pool.invoke(task);
+  }
+
+  private static final class BufferUnionTask extends RecursiveTask<Geometry> {
+    private static final long serialVersionUID = 1L;
+    private final transient List<Geometry> lines;
+    private final int start;
+    private final int end;
+    private final double distance;
+
+    BufferUnionTask(List<Geometry> lines, int start, int end, double distance) {
+      this.lines = lines;
+      this.start = start;
+      this.end = end;
+      this.distance = distance;
+    }
+
+    @Override
+    protected Geometry compute() {
+      if (end - start <= GROUP_SIZE) {
+        return bufferGroup();
+      }
+      int middle = (start + end) >>> 1;
+      BufferUnionTask left = new BufferUnionTask(lines, start, middle,
+          distance);
+      BufferUnionTask right = new BufferUnionTask(lines, middle, end, distance);
+      invokeAll(left, right);
+      return left.join().union(right.join());
+    }
+
+    /**
+     * Evaluates the same tree without forking
+     */
+    Geometry union() {
+      if (end - start <= GROUP_SIZE) {
+        return bufferGroup();
+      }
+      int middle = (start + end) >>> 1;
+      Geometry left = new BufferUnionTask(lines, start, middle, distance)
+          .union();
+      Geometry right = new BufferUnionTask(lines, middle, end, distance)
+          .union();
+      return left.union(right);
+    }
+
+    private Geometry bufferGroup() {
+      GeometryFactory factory = lines.get(start).getFactory();
+      Geometry group = factory.buildGeometry(lines.subList(start, end));
+      return group.buffer(distance);
+    }
+  }
+}
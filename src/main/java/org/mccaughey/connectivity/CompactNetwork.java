@@ -0,0 +1,693 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateList;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+
+/**
+ * An immutable, compressed sparse row (CSR) representation of a line network.
+ * Nodes and edges are identified by int ids, the edges incident to node n are
+ * stored in adjacency[adjacencyOffsets[n]] to adjacency[adjacencyOffsets[n +
+ * 1] - 1], and edge lengths are held in a primitive array, so a whole network
+ * costs a handful of arrays rather than a graph of node and edge objects. The
+ * edge geometries are kept as packed x,y coordinates (edge e's coordinates are
+ * coordinateOffsets[e] to coordinateOffsets[e + 1] - 1), with the length
+ * along the edge at each coordinate, so that reached parts of edges can be
+ * cut out and turned back into features when output is needed.
+ *
+ * A network is built once (eg per batch) and can be shared between threads.
+ *
+ * @author amacaulay
+ */
+public final class CompactNetwork {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(CompactNetwork.class);
+  /**
+   * Rough size of the snapping index per edge: its place in the edge order and
+   * a share of the tree node bounds
+   */
+  private static final long INDEX_BYTES_PER_EDGE = 8;
+  private static final AtomicLong GENERATIONS = new AtomicLong();
+
+  // tells networks apart without holding on to them
+  private final long generation = GENERATIONS.incrementAndGet();
+  private final double[] nodeX;
+  private final double[] nodeY;
+  private final int[] edgeNodeA;
+  private final int[] edgeNodeB;
+  private final double[] edgeLength;
+  private final int[] adjacencyOffsets;
+  private final int[] adjacency;
+  private final int[] coordinateOffsets;
+  private final double[] coordinates;
+  private final double[] measures;
+  private final double[] edgeEnvelopes;
+  private final double meanEdgeLength;
+  private final GeometryFactory geometryFactory;
+  private final CoordinateReferenceSystem crs;
+  private final EdgeSnapIndex snapIndex;
+  private CompactNetwork(double[] nodeX, double[] nodeY, int[] edgeNodeA,
+      int[] edgeNodeB, LineString[] edgeGeometry, CoordinateReferenceSystem crs) {
+    this(nodeX, nodeY, edgeNodeA, edgeNodeB, packOffsets(edgeGeometry),
+        packCoordinates(edgeGeometry), null, null, null, null, null,
+        edgeGeometry.length > 0 ? edgeGeometry[0].getFactory()
+            : new GeometryFactory(), crs);
+  }
+
+  /**
+   * Creates a network from its arrays, the coordinate measures, edge lengths,
+   * envelopes, adjacency and snapping index order are worked out here if they
+   * are not given (they are when read from a network file)
+   */
+  CompactNetwork(double[] nodeX, double[] nodeY, int[] edgeNodeA,
+      int[] edgeNodeB, int[] coordinateOffsets, double[] coordinates,
+      double[] measures, double[] edgeLength, double[] edgeEnvelopes,
+      int[][] adjacency, int[] snapOrder, GeometryFactory geometryFactory,
+      CoordinateReferenceSystem crs) {
+    this.nodeX = nodeX;
+    this.nodeY = nodeY;
+    this.edgeNodeA = edgeNodeA;
+    this.edgeNodeB = edgeNodeB;
+    this.coordinateOffsets = coordinateOffsets;
+    this.coordinates = coordinates;
+    this.geometryFactory = geometryFactory;
+    this.crs = crs;
+
+    int edgeCount = edgeNodeA.length;
+    if (measures == null) {
+      this.measures = new double[coordinates.length / 2];
+      for (int e = 0; e < edgeCount; e++) {
+        LineSubstring.measure(coordinates, coordinateOffsets[e],
+            coordinateOffsets[e + 1], this.measures);
+      }
+    } else {
+      this.measures = measures;
+    }
+    if (edgeLength == null || edgeEnvelopes == null) {
+      this.edgeLength = new double[edgeCount];
+      this.edgeEnvelopes = new double[4 * edgeCount];
+      measureEdges();
+    } else {
+      this.edgeLength = edgeLength;
+      this.edgeEnvelopes = edgeEnvelopes;
+    }
+    if (adjacency == null) {
+      this.adjacencyOffsets = new int[nodeX.length + 1];
+      this.adjacency = new int[2 * edgeCount];
+      fillAdjacency();
+    } else {
+      this.adjacencyOffsets = adjacency[0];
+      this.adjacency = adjacency[1];
+    }
+    double total = 0.0;
+    for (double length : this.edgeLength) {
+      total += length;
+    }
+    this.meanEdgeLength = edgeCount == 0 ? 0.0 : total / edgeCount;
+
+    if (snapOrder == null) {
+      this.snapIndex = new EdgeSnapIndex(this);
+    } else {
+      this.snapIndex = new EdgeSnapIndex(this, snapOrder);
+    }
+  }
+
+  private static int[] packOffsets(LineString[] lines) {
+    int[] offsets = new int[lines.length + 1];
+    for (int e = 0; e < lines.length; e++) {
+      offsets[e + 1] = offsets[e] + lines[e].getNumPoints();
+    }
+    return offsets;
+  }
+
+  private static double[] packCoordinates(LineString[] lines) {
+    int size = 0;
+    for (LineString line : lines) {
+      size += 2 * line.getNumPoints();
+    }
+    double[] packed = new double[size];
+    int i = 0;
+    for (LineString line : lines) {
+      CoordinateSequence seq = line.getCoordinateSequence();
+      for (int c = 0; c < seq.size(); c++) {
+        packed[i++] = seq.getX(c);
+        packed[i++] = seq.getY(c);
+      }
+    }
+    return packed;
+  }
+
+  private void measureEdges() {
+    for (int e = 0; e < edgeNodeA.length; e++) {
+      int start = coordinateOffsets[e];
+      int end = coordinateOffsets[e + 1];
+      double minX = coordinates[2 * start];
+      double minY = coordinates[2 * start + 1];
+      double maxX = minX;
+      double maxY = minY;
+      for (int c = start + 1; c < end; c++) {
+        double x = coordinates[2 * c];
+        double y = coordinates[2 * c + 1];
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
+      }
+      edgeLength[e] = measures[end - 1];
+      edgeEnvelopes[4 * e] = minX;
+      edgeEnvelopes[4 * e + 1] = minY;
+      edgeEnvelopes[4 * e + 2] = maxX;
+      edgeEnvelopes[4 * e + 3] = maxY;
+    }
+  }
+
+  /**
+   * Counts the degree of each node (a looped edge counts twice, as it does in
+   * a geotools graph) then fills the adjacency array
+   */
+  private void fillAdjacency() {
+    int nodeCount = nodeX.length;
+    int edgeCount = edgeNodeA.length;
+    for (int e = 0; e < edgeCount; e++) {
+      adjacencyOffsets[edgeNodeA[e] + 1]++;
+      adjacencyOffsets[edgeNodeB[e] + 1]++;
+    }
+    for (int n = 0; n < nodeCount; n++) {
+      adjacencyOffsets[n + 1] += adjacencyOffsets[n];
+    }
+    int[] fill = new int[nodeCount];
+    for (int e = 0; e < edgeCount; e++) {
+      int a = edgeNodeA[e];
+      int b = edgeNodeB[e];
+      adjacency[adjacencyOffsets[a] + fill[a]++] = e;
+      adjacency[adjacencyOffsets[b] + fill[b]++] = e;
+    }
+  }
+
+  /**
+   * Builds a compact network from all the features of a network source
+   *
+   * @param network
+   *          A network (eg roads) dataset
+   * @return The compact network
+   * @throws IOException
+   */
+  public static CompactNetwork build(SimpleFeatureSource network)
+      throws IOException {
+    return build(network.getFeatures());
+  }
+
+  /**
+   * Builds a compact network from the features of a network source that
+   * intersect an extent, eg the extent of a set of points expanded by the
+   * maximum distance
+   *
+   * @param network
+   *          A network (eg roads) dataset
+   * @param extent
+   *          The extent of interest
+   * @return The compact network
+   * @throws IOException
+   */
+  public static CompactNetwork build(SimpleFeatureSource network,
+      Envelope extent) throws IOException {
+    FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+    String geometryPropertyName = network.getSchema().getGeometryDescriptor()
+        .getLocalName();
+    Filter filter = ff.intersects(ff.property(geometryPropertyName),
+        ff.literal(new GeometryFactory().toGeometry(extent)));
+    return build(network.getFeatures(filter));
+  }
+
+  /**
+   * Builds a compact network from a collection of line features, each
+   * (multi)line string becomes one or more edges
+   *
+   * @param features
+   *          The network features
+   * @return The compact network
+   */
+  public static CompactNetwork build(SimpleFeatureCollection features) {
+    List<LineString> lines = new ArrayList<LineString>();
+    SimpleFeatureIterator iter = features.features();
+    try {
+      while (iter.hasNext()) {
+        SimpleFeature feature = iter.next();
+        Geometry geom = (Geometry) feature.getDefaultGeometry();
+        if (geom == null) {
+          continue;
+        }
+        for (int i = 0; i < geom.getNumGeometries(); i++) {
+          lines.add((LineString) geom.getGeometryN(i));
+        }
+      }
+    } finally {
+      iter.close();
+    }
+    return build(lines, features.getSchema().getCoordinateReferenceSystem());
+  }
+
+  /**
+   * Builds a compact network from a list of line strings, lines that share an
+   * end coordinate share a node
+   *
+   * @param lines
+   *          The network lines
+   * @param crs
+   *          The coordinate reference system of the lines
+   * @return The compact network
+   */
+  public static CompactNetwork build(List<LineString> lines,
+      CoordinateReferenceSystem crs) {
+    Map<Coordinate, Integer> nodeIds = new HashMap<Coordinate, Integer>();
+    List<Coordinate> nodes = new ArrayList<Coordinate>();
+    List<LineString> edges = new ArrayList<LineString>(lines.size());
+    int[] nodeA = new int[lines.size()];
+    int[] nodeB = new int[lines.size()];
+
+    for (LineString line : lines) {
+      if (line.isEmpty() || line.getNumPoints() < 2) {
+        continue;
+      }
+      int edge = edges.size();
+      nodeA[edge] = nodeId(line.getCoordinateN(0), nodeIds, nodes);
+      nodeB[edge] = nodeId(line.getCoordinateN(line.getNumPoints() - 1),
+          nodeIds, nodes);
+      edges.add(line);
+    }
+
+    double[] x = new double[nodes.size()];
+    double[] y = new double[nodes.size()];
+    for (int n = 0; n < nodes.size(); n++) {
+      x[n] = nodes.get(n).x;
+      y[n] = nodes.get(n).y;
+    }
+    int edgeCount = edges.size();
+    int[] edgeNodeA = new int[edgeCount];
+    int[] edgeNodeB = new int[edgeCount];
+    System.arraycopy(nodeA, 0, edgeNodeA, 0, edgeCount);
+    System.arraycopy(nodeB, 0, edgeNodeB, 0, edgeCount);
+
+    LOGGER.debug("Built compact network with {} nodes and {} edges",
+        nodes.size(), edgeCount);
+    return new CompactNetwork(x, y, edgeNodeA, edgeNodeB,
+        edges.toArray(new LineString[edgeCount]), crs);
+  }
+
+  /**
+   * Contracts chains of edges joined at degree-2 nodes (eg where lines were
+   * split for attribute changes) into single edges. The merged edge keeps the
+   * joined geometry of the chain, so service areas on the contracted network
+   * are chopped and output exactly as on the original network, but a
+   * traversal has far fewer nodes and edges to step through. Chains that form
+   * a closed ring become a looped edge.
+   *
+   * @return The contracted network
+   */
+  public CompactNetwork contract() {
+    int edgeCount = getEdgeCount();
+    boolean[] merged = new boolean[edgeCount];
+    Map<Integer, Integer> nodeIds = new HashMap<Integer, Integer>();
+    List<Coordinate> nodes = new ArrayList<Coordinate>();
+    List<LineString> edges = new ArrayList<LineString>();
+    List<Integer> nodeA = new ArrayList<Integer>();
+    List<Integer> nodeB = new ArrayList<Integer>();
+
+    for (int n = 0; n < getNodeCount(); n++) {
+      if (getDegree(n) == 2) {
+        continue;
+      }
+      for (int i = getAdjacencyStart(n); i < getAdjacencyEnd(n); i++) {
+        int edge = getAdjacentEdge(i);
+        if (!merged[edge]) {
+          addChain(n, edge, merged, nodeIds, nodes, edges, nodeA, nodeB);
+        }
+      }
+    }
+    // Anything left is a ring of degree-2 nodes
+    for (int e = 0; e < edgeCount; e++) {
+      if (!merged[e]) {
+        addChain(edgeNodeA[e], e, merged, nodeIds, nodes, edges, nodeA, nodeB);
+      }
+    }
+
+    double[] x = new double[nodes.size()];
+    double[] y = new double[nodes.size()];
+    for (int n = 0; n < nodes.size(); n++) {
+      x[n] = nodes.get(n).x;
+      y[n] = nodes.get(n).y;
+    }
+    int[] edgeNodeA = new int[edges.size()];
+    int[] edgeNodeB = new int[edges.size()];
+    for (int e = 0; e < edges.size(); e++) {
+      edgeNodeA[e] = nodeA.get(e);
+      edgeNodeB[e] = nodeB.get(e);
+    }
+    LOGGER.debug("Contracted network from {} to {} edges", edgeCount,
+        edges.size());
+    return new CompactNetwork(x, y, edgeNodeA, edgeNodeB,
+        edges.toArray(new LineString[edges.size()]), crs);
+  }
+
+  /**
+   * Follows edges from a node through degree-2 nodes until reaching a node of
+   * another degree (or the start node again) and adds the chain as one edge
+   */
+  private void addChain(int start, int firstEdge, boolean[] merged,
+      Map<Integer, Integer> nodeIds, List<Coordinate> nodes,
+      List<LineString> edges, List<Integer> nodeA, List<Integer> nodeB) {
+    CoordinateList coordinates = new CoordinateList();
+    int node = start;
+    int edge = firstEdge;
+    while (true) {
+      merged[edge] = true;
+      coordinates.add(getEdgeGeometry(edge).getCoordinates(), false,
+          edgeNodeA[edge] == node);
+      node = getOtherNode(edge, node);
+      if (node == start || getDegree(node) != 2) {
+        break;
+      }
+      int next = getAdjacentEdge(getAdjacencyStart(node));
+      if (next == edge) {
+        next = getAdjacentEdge(getAdjacencyStart(node) + 1);
+      }
+      if (merged[next]) {
+        break;
+      }
+      edge = next;
+    }
+    if (coordinates.size() < 2) {
+      // a chain of zero length edges, keep it as a two point line
+      coordinates.add(coordinates.getCoordinate(0), true);
+    }
+    edges.add(geometryFactory.createLineString(coordinates
+        .toCoordinateArray()));
+    nodeA.add(contractedNode(start, nodeIds, nodes));
+    nodeB.add(contractedNode(node, nodeIds, nodes));
+  }
+
+  private int contractedNode(int node, Map<Integer, Integer> nodeIds,
+      List<Coordinate> nodes) {
+    Integer id = nodeIds.get(node);
+    if (id == null) {
+      id = nodes.size();
+      nodeIds.put(node, id);
+      nodes.add(getNodeCoordinate(node));
+    }
+    return id;
+  }
+
+  private static int nodeId(Coordinate coordinate,
+      Map<Coordinate, Integer> nodeIds, List<Coordinate> nodes) {
+    Integer id = nodeIds.get(coordinate);
+    if (id == null) {
+      id = nodes.size();
+      nodeIds.put(coordinate, id);
+      nodes.add(coordinate);
+    }
+    return id;
+  }
+
+  /**
+   * Snaps a coordinate to the nearest location on the network
+   *
+   * @param pt
+   *          The coordinate to snap
+   * @param maxDistance
+   *          The maximum distance to search for an edge
+   * @return The nearest network location, or null if no edge is within
+   *         maxDistance
+   */
+  public NetworkLocation locate(Coordinate pt, double maxDistance) {
+    return snapIndex.nearest(pt, maxDistance);
+  }
+
+  /**
+   * @return The shared nearest edge index of the network
+   */
+  public EdgeSnapIndex getSnapIndex() {
+    return snapIndex;
+  }
+
+  /**
+   * @return The number of nodes in the network
+   */
+  public int getNodeCount() {
+    return nodeX.length;
+  }
+
+  /**
+   * @return The number of edges in the network
+   */
+  public int getEdgeCount() {
+    return edgeNodeA.length;
+  }
+
+  /**
+   * @return The node at the start of the edge geometry
+   */
+  public int getNodeA(int edge) {
+    return edgeNodeA[edge];
+  }
+
+  /**
+   * @return The node at the end of the edge geometry
+   */
+  public int getNodeB(int edge) {
+    return edgeNodeB[edge];
+  }
+
+  /**
+   * @return The node at the other end of edge from node
+   */
+  public int getOtherNode(int edge, int node) {
+    return edgeNodeA[edge] == node ? edgeNodeB[edge] : edgeNodeA[edge];
+  }
+
+  /**
+   * @return The length of the edge geometry
+   */
+  public double getEdgeLength(int edge) {
+    return edgeLength[edge];
+  }
+
+  /**
+   * @return The mean length of the edges, worked out when the network is built
+   */
+  public double getMeanEdgeLength() {
+    return meanEdgeLength;
+  }
+
+  /**
+   * @return The edge geometry, created from the packed coordinates on each call
+   */
+  public LineString getEdgeGeometry(int edge) {
+    double[] packed = Arrays.copyOfRange(coordinates,
+        2 * coordinateOffsets[edge], 2 * coordinateOffsets[edge + 1]);
+    return geometryFactory.createLineString(new PackedCoordinateSequence.Double(
+        packed, 2));
+  }
+
+  /**
+   * Cuts part of an edge out of the packed coordinates
+   *
+   * @param edge
+   *          The edge
+   * @param start
+   *          The distance along the edge to start at
+   * @param end
+   *          The distance along the edge to end at
+   * @return The part of the edge geometry
+   */
+  public LineString getEdgeGeometry(int edge, double start, double end) {
+    if (start <= 0.0 && end >= edgeLength[edge]) {
+      return getEdgeGeometry(edge);
+    }
+    return LineSubstring.extract(geometryFactory, coordinates, measures,
+        coordinateOffsets[edge], coordinateOffsets[edge + 1], start, end);
+  }
+
+  /**
+   * @return The bounding box of the edge geometry
+   */
+  public Envelope getEdgeEnvelope(int edge) {
+    return new Envelope(edgeEnvelopes[4 * edge], edgeEnvelopes[4 * edge + 2],
+        edgeEnvelopes[4 * edge + 1], edgeEnvelopes[4 * edge + 3]);
+  }
+
+  /**
+   * @return One of the minX, minY, maxX, maxY (0 to 3) of the edge's envelope,
+   *         without creating an Envelope
+   */
+  double getEdgeBound(int edge, int ordinate) {
+    return edgeEnvelopes[4 * edge + ordinate];
+  }
+
+  /**
+   * @return The index of the first coordinate of the edge geometry
+   */
+  int getCoordinateStart(int edge) {
+    return coordinateOffsets[edge];
+  }
+
+  /**
+   * @return The index after the last coordinate of the edge geometry
+   */
+  int getCoordinateEnd(int edge) {
+    return coordinateOffsets[edge + 1];
+  }
+
+  /**
+   * @return The distance along its edge of the coordinate at index
+   */
+  double getMeasure(int index) {
+    return measures[index];
+  }
+
+  /**
+   * @return The x ordinate of the coordinate at index
+   */
+  double getX(int index) {
+    return coordinates[2 * index];
+  }
+
+  /**
+   * @return The y ordinate of the coordinate at index
+   */
+  double getY(int index) {
+    return coordinates[2 * index + 1];
+  }
+
+  /**
+   * @return The number of edge ends at the node
+   */
+  public int getDegree(int node) {
+    return adjacencyOffsets[node + 1] - adjacencyOffsets[node];
+  }
+
+  /**
+   * @return The index of the first edge of node in the adjacency array
+   */
+  int getAdjacencyStart(int node) {
+    return adjacencyOffsets[node];
+  }
+
+  /**
+   * @return The index after the last edge of node in the adjacency array
+   */
+  int getAdjacencyEnd(int node) {
+    return adjacencyOffsets[node + 1];
+  }
+
+  /**
+   * @return The edge id at the given index of the adjacency array
+   */
+  int getAdjacentEdge(int index) {
+    return adjacency[index];
+  }
+
+  /**
+   * @return The node location
+   */
+  public Coordinate getNodeCoordinate(int node) {
+    return new Coordinate(nodeX[node], nodeY[node]);
+  }
+
+  /**
+   * @return A number unique to this network in this process, so caches can
+   *         key by network without keeping it reachable
+   */
+  long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * @return An estimate of the memory held by the network arrays and snapping
+   *         index, in bytes
+   */
+  long estimateMemory() {
+    long doubles = nodeX.length + nodeY.length + edgeLength.length
+        + coordinates.length + measures.length + edgeEnvelopes.length;
+    long ints = edgeNodeA.length + edgeNodeB.length + adjacencyOffsets.length
+        + adjacency.length + coordinateOffsets.length;
+    return 8 * doubles + 4 * ints + INDEX_BYTES_PER_EDGE * edgeNodeA.length;
+  }
+
+  /**
+   * @return An estimate of the working arrays each thread traversing the
+   *         network keeps (for sequential and parallel traversals), in bytes
+   */
+  long estimateWorkingMemory() {
+    return (long) (TraversalState.BYTES_PER_NODE
+        + ParallelTraversal.State.BYTES_PER_NODE) * getNodeCount()
+        + (long) TraversalState.BYTES_PER_EDGE * getEdgeCount();
+  }
+
+  /**
+   * @return The x ordinate of the node
+   */
+  double getNodeX(int node) {
+    return nodeX[node];
+  }
+
+  /**
+   * @return The y ordinate of the node
+   */
+  double getNodeY(int node) {
+    return nodeY[node];
+  }
+
+  /**
+   * @return The geometry factory edge geometries are created with
+   */
+  GeometryFactory getGeometryFactory() {
+    return geometryFactory;
+  }
+
+  /**
+   * @return The coordinate reference system of the network
+   */
+  public CoordinateReferenceSystem getCoordinateReferenceSystem() {
+    return crs;
+  }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jsr166y.ForkJoinPool;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.Polygonal;
+import com.vividsolutions.jts.geom.Puntal;
+import com.vividsolutions.jts.geom.TopologyException;
+
+/**
+ * Generates network service areas by traversing a CompactNetwork. Node
+ * distances are held in primitive arrays and edges are only turned back into
+ * geometries/features when the service area is output.
+ *
+ * @author amacaulay
+ */
+public final class CompactNetworkBuffer {
+
+  static final Logger LOGGER = LoggerFactory
+      .getLogger(CompactNetworkBuffer.class);
+
+  private CompactNetworkBuffer() {
+  }
+
+  /**
+   * @param network
+   *          A compact network (eg roads)
+   * @param pointFeature
+   *          A point of interest used as a starting point
+   * @param networkDistance
+   *          The distance to traverse along the network
+   * @param bufferDistance
+   *          The distance to buffer the network to create the final region
+   * @return The service area of all paths of networkDistance from the
+   *         starting point (snapped to the network), or null if the point
+   *         could not be snapped
+   */
+  public static CompactServiceArea findServiceArea(CompactNetwork network,
+      SimpleFeature pointFeature, Double networkDistance, Double bufferDistance) {
+    NetworkLocation origin = locate(network, pointFeature, networkDistance
+        + bufferDistance);
+    if (origin == null) {
+      return null;
+    }
+    return findServiceArea(network, origin, networkDistance);
+  }
+
+  /**
+   * Snaps a point of interest to the network
+   *
+   * @param network
+   *          A compact network
+   * @param pointFeature
+   *          A point of interest
+   * @param maxDistance
+   *          The maximum distance to snap
+   * @return The nearest network location, or null if the point could not be
+   *         snapped
+   */
+  public static NetworkLocation locate(CompactNetwork network,
+      SimpleFeature pointFeature, double maxDistance) {
+    Point pointOfInterest = (Point) pointFeature.getDefaultGeometry();
+    NetworkLocation origin = network.locate(pointOfInterest.getCoordinate(),
+        maxDistance);
+    if (origin == null) {
+      LOGGER.error("Failed to snap point {} to network", pointFeature.getID());
+      return null;
+    }
+    LOGGER.debug("Snapped point {} to {}", pointFeature.getID(), origin);
+    return origin;
+  }
+
+  /**
+   * Finds where an origin feature meets the network. A point snaps to its
+   * nearest location and a multipoint has each point snapped. A polygon (or
+   * multipolygon) enters the network wherever an edge is within the entry
+   * tolerance of it, or at the single nearest location if no edge is that
+   * close.
+   *
+   * @param network
+   *          A compact network
+   * @param originFeature
+   *          A point, multipoint or polygon of interest
+   * @param entryTolerance
+   *          The furthest a polygon's edges can be from it
+   * @param maxDistance
+   *          The maximum distance to snap
+   * @return The network locations, empty if the origin could not be snapped
+   */
+  public static NetworkLocation[] locateAll(CompactNetwork network,
+      SimpleFeature originFeature, double entryTolerance, double maxDistance) {
+    Geometry origin = (Geometry) originFeature.getDefaultGeometry();
+    List<NetworkLocation> locations = new ArrayList<NetworkLocation>();
+    if (origin instanceof Polygonal) {
+      locations.addAll(network.getSnapIndex().entries(origin, entryTolerance));
+      if (locations.isEmpty()) {
+        locations.addAll(nearestEntry(network, origin, maxDistance));
+      }
+    } else if (origin instanceof Puntal) {
+      for (int i = 0; i < origin.getNumGeometries(); i++) {
+        NetworkLocation location = network.locate(origin.getGeometryN(i)
+            .getCoordinate(), maxDistance);
+        if (location != null) {
+          locations.add(location);
+        }
+      }
+    } else {
+      NetworkLocation location = network.locate(origin.getCentroid()
+          .getCoordinate(), maxDistance);
+      if (location != null) {
+        locations.add(location);
+      }
+    }
+    if (locations.isEmpty()) {
+      LOGGER.error("Failed to snap origin {} to network",
+          originFeature.getID());
+    } else {
+      LOGGER.debug("Snapped origin {} to {} locations", originFeature.getID(),
+          locations.size());
+    }
+    return locations.toArray(new NetworkLocation[locations.size()]);
+  }
+
+  private static List<NetworkLocation> nearestEntry(CompactNetwork network,
+      Geometry area, double maxDistance) {
+    List<NetworkLocation> nearest = new ArrayList<NetworkLocation>(1);
+    for (NetworkLocation entry : network.getSnapIndex().entries(area,
+        maxDistance)) {
+      if (nearest.isEmpty()
+          || entry.getSnapDistance() < nearest.get(0).getSnapDistance()) {
+        nearest.clear();
+        nearest.add(entry);
+      }
+    }
+    return nearest;
+  }
+
+  /**
+   * Finds all the edges (and parts of edges) within a network distance of a
+   * location
+   *
+   * @param network
+   *          A compact network
+   * @param origin
+   *          The starting location on the network
+   * @param distance
+   *          The distance to traverse along the network
+   * @return The service area
+   */
+  public static CompactServiceArea findServiceArea(CompactNetwork network,
+      NetworkLocation origin, double distance) {
+    return findServiceArea(network, new NetworkLocation[] { origin },
+        distance);
+  }
+
+  /**
+   * Finds all the edges (and parts of edges) within a network distance of any
+   * of several locations (eg the entry points of a park), in one traversal
+   * with every location as a source at distance 0
+   *
+   * @param network
+   *          A compact network
+   * @param origins
+   *          The starting locations on the network
+   * @param distance
+   *          The distance to traverse along the network
+   * @return The service area
+   */
+  public static CompactServiceArea findServiceArea(CompactNetwork network,
+      NetworkLocation[] origins, double distance) {
+    TraversalState state = TraversalState.acquire(network);
+    try {
+      for (NetworkLocation origin : origins) {
+        int edge = origin.getEdge();
+        seed(state, network.getNodeA(edge), origin.getOffset(), distance);
+        seed(state, network.getNodeB(edge), network.getEdgeLength(edge)
+            - origin.getOffset(), distance);
+      }
+      traverse(network, state, distance);
+      return collect(network, state, origins, distance);
+    } finally {
+      state.release();
+    }
+  }
+
+  /**
+   * Finds all the edges (and parts of edges) within a network distance of a
+   * location, spreading the traversal over the threads of a pool. Worthwhile
+   * for very long distances (eg cycling catchments), the service area is the
+   * same as the sequential traversal finds.
+   *
+   * @param network
+   *          A compact network
+   * @param origin
+   *          The starting location on the network
+   * @param distance
+   *          The distance to traverse along the network
+   * @param pool
+   *          The pool to traverse on
+   * @return The service area
+   */
+  public static CompactServiceArea findServiceArea(CompactNetwork network,
+      NetworkLocation origin, double distance, ForkJoinPool pool) {
+    return findServiceArea(network, origin, distance, pool,
+        network.getMeanEdgeLength());
+  }
+
+  /**
+   * Finds all the edges (and parts of edges) within a network distance of a
+   * location, spreading the traversal over the threads of a pool
+   *
+   * @param network
+   *          A compact network
+   * @param origin
+   *          The starting location on the network
+   * @param distance
+   *          The distance to traverse along the network
+   * @param pool
+   *          The pool to traverse on
+   * @param delta
+   *          The distance band whose nodes are relaxed in parallel, smaller
+   *          bands do less repeated work, larger bands more parallel work
+   * @return The service area
+   */
+  public static CompactServiceArea findServiceArea(CompactNetwork network,
+      NetworkLocation origin, double distance, ForkJoinPool pool, double delta) {
+    return findServiceArea(network, new NetworkLocation[] { origin },
+        distance, pool, delta);
+  }
+
+  /**
+   * Finds all the edges (and parts of edges) within a network distance of any
+   * of several locations, spreading the traversal over the threads of a pool
+   *
+   * @param network
+   *          A compact network
+   * @param origins
+   *          The starting locations on the network
+   * @param distance
+   *          The distance to traverse along the network
+   * @param pool
+   *          The pool to traverse on
+   * @param delta
+   *          The distance band whose nodes are relaxed in parallel
+   * @return The service area
+   */
+  public static CompactServiceArea findServiceArea(CompactNetwork network,
+      NetworkLocation[] origins, double distance, ForkJoinPool pool,
+      double delta) {
+    ParallelTraversal traversal = new ParallelTraversal(network, distance,
+        delta);
+    TraversalState state = TraversalState.acquire(network);
+    try {
+      for (NetworkLocation origin : origins) {
+        int edge = origin.getEdge();
+        traversal.seed(network.getNodeA(edge), origin.getOffset());
+        traversal.seed(network.getNodeB(edge), network.getEdgeLength(edge)
+            - origin.getOffset());
+      }
+      traversal.traverse(pool);
+      for (int i = 0; i < traversal.getTouchedCount(); i++) {
+        int node = traversal.getTouched(i);
+        state.setDistance(node, traversal.getDistance(node));
+      }
+      return collect(network, state, origins, distance);
+    } finally {
+      state.release();
+      traversal.reset();
+    }
+  }
+
+  private static void seed(TraversalState state, int node, double d,
+      double distance) {
+    if (d <= distance && d < state.getDistance(node)) {
+      state.update(node, d);
+    }
+  }
+
+  /**
+   * Label setting (Dijkstra) traversal, nodes are settled in order of distance
+   * and nodes beyond the distance cutoff are never queued, so each reachable
+   * node is expanded exactly once
+   */
+  private static void traverse(CompactNetwork network, TraversalState state,
+      double distance) {
+    while (state.hasUnsettled()) {
+      int node = state.settleNearest();
+      double nodeDistance = state.getDistance(node);
+      for (int i = network.getAdjacencyStart(node); i < network
+          .getAdjacencyEnd(node); i++) {
+        int edge = network.getAdjacentEdge(i);
+        int next = network.getOtherNode(edge, node);
+        double nextDistance = nodeDistance + network.getEdgeLength(edge);
+        if (nextDistance <= distance && nextDistance < state.getDistance(next)) {
+          state.update(next, nextDistance);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gathers every edge touching a reached node, along with the edges the
+   * origins lie on
+   */
+  private static CompactServiceArea collect(CompactNetwork network,
+      TraversalState state, NetworkLocation[] origins, double distance) {
+    int[] edges = new int[16];
+    int count = 0;
+    for (NetworkLocation origin : origins) {
+      if (state.markEdge(origin.getEdge())) {
+        edges = append(edges, count++, origin.getEdge());
+      }
+    }
+    for (int t = 0; t < state.getTouchedCount(); t++) {
+      int node = state.getTouched(t);
+      for (int i = network.getAdjacencyStart(node); i < network
+          .getAdjacencyEnd(node); i++) {
+        int edge = network.getAdjacentEdge(i);
+        if (state.markEdge(edge)) {
+          edges = append(edges, count++, edge);
+        }
+      }
+    }
+
+    int[] reached = new int[count];
+    double[] distanceA = new double[count];
+    double[] distanceB = new double[count];
+    for (int i = 0; i < count; i++) {
+      int edge = edges[i];
+      state.unmarkEdge(edge);
+      reached[i] = edge;
+      distanceA[i] = state.getDistance(network.getNodeA(edge));
+      distanceB[i] = state.getDistance(network.getNodeB(edge));
+    }
+    return new CompactServiceArea(network, origins, distance, reached,
+        distanceA, distanceB);
+  }
+
+  private static int[] append(int[] array, int index, int value) {
+    int[] result = array;
+    if (index == array.length) {
+      result = new int[array.length * 2];
+      System.arraycopy(array, 0, result, 0, array.length);
+    }
+    result[index] = value;
+    return result;
+  }
+
+  /**
+   * Buffers the service area at each of several network distances
+   *
+   * @param serviceArea
+   *          The service area, found for at least the largest distance
+   * @param distances
+   *          The network distances to buffer the service area at
+   * @param bufferDistance
+   *          the distance to buffer
+   * @return A buffer polygon for each distance, null where the buffer failed
+   */
+  public static List<Geometry> bufferGeometries(CompactServiceArea serviceArea,
+      List<Double> distances, Double bufferDistance) {
+    return bufferGeometries(serviceArea, distances, bufferDistance, null);
+  }
+
+  /**
+   * Buffers the service area at each of several network distances, buffering
+   * and merging the lines of each in parallel
+   *
+   * @param serviceArea
+   *          The service area, found for at least the largest distance
+   * @param distances
+   *          The network distances to buffer the service area at
+   * @param bufferDistance
+   *          the distance to buffer
+   * @param pool
+   *          The pool to buffer on, or null to buffer on the calling thread
+   * @return A buffer polygon for each distance, null where the buffer failed
+   */
+  public static List<Geometry> bufferGeometries(CompactServiceArea serviceArea,
+      List<Double> distances, Double bufferDistance, ForkJoinPool pool) {
+    List<Geometry> geometries = new ArrayList<Geometry>(distances.size());
+    for (Double distance : distances) {
+      List<LineString> lines = serviceArea.within(distance).getLines();
+      try {
+        if (pool == null) {
+          geometries.add(CascadedBuffer.buffer(lines, bufferDistance));
+        } else {
+          geometries.add(CascadedBuffer.buffer(lines, bufferDistance, pool));
+        }
+      } catch (TopologyException e) {
+        LOGGER.error("Failed to create {} buffer from network: {}", distance,
+            e.getMessage());
+        geometries.add(null);
+      }
+    }
+    return geometries;
+  }
+
+  /**
+   * Builds buffer features, with the source feature's attributes plus a
+   * "NetworkDistance" attribute, from buffer polygons
+   *
+   * @param distances
+   *          The network distance of each buffer
+   * @param geometries
+   *          The buffer polygons, null ones are skipped
+   * @param sourceFeature
+   *          The feature whose attributes are copied to the buffers
+   * @param id
+   *          The id prefix of the buffer features
+   * @return The buffer features
+   */
+  public static List<SimpleFeature> buildBandFeatures(List<Double> distances,
+      List<Geometry> geometries, SimpleFeature sourceFeature, String id) {
+    SimpleFeatureType bandType = createBandFeatureType(sourceFeature
+        .getType());
+    List<SimpleFeature> buffers = new ArrayList<SimpleFeature>(
+        distances.size());
+    for (int i = 0; i < distances.size(); i++) {
+      if (geometries.get(i) == null) {
+        continue;
+      }
+      SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(bandType);
+      // Add all the attributes except geometry
+      for (Object attr : sourceFeature.getAttributes()) {
+        if (attr != sourceFeature.getDefaultGeometry()) {
+          sfb.add(attr);
+        }
+      }
+      sfb.add(distances.get(i));
+      sfb.add(geometries.get(i));
+      buffers.add(sfb.buildFeature(id + "_" + distances.get(i)));
+    }
+    return buffers;
+  }
+
+  private static SimpleFeatureType createBandFeatureType(
+      SimpleFeatureType sft) {
+    SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
+    stb.init(sft);
+    stb.setName("networkBufferFeatureType");
+    stb.remove(sft.getGeometryDescriptor().getName().toString());
+    stb.add("NetworkDistance", Double.class);
+    stb.add("Geometry", Polygon.class);
+    return stb.buildFeatureType();
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * The edges of a CompactNetwork reached by a traversal. Each reached edge is
+ * held as its id and the network distances to its two end nodes, from which
+ * the reached (possibly partial) extent of the edge is worked out. Line
+ * geometries and features are only built when they are asked for.
+ *
+ * @author amacaulay
+ */
+public final class CompactServiceArea {
+
+  private static final String DISTANCE_ATTRIBUTE = "Distance";
+  private final CompactNetwork network;
+  private final NetworkLocation[] origins;
+  private final double distance;
+  private final int[] edges;
+  private final double[] distanceA;
+  private final double[] distanceB;
+
+  CompactServiceArea(CompactNetwork network, NetworkLocation[] origins,
+      double distance, int[] edges, double[] distanceA, double[] distanceB) {
+    this.network = network;
+    this.origins = origins;
+    this.distance = distance;
+    this.edges = edges;
+    this.distanceA = distanceA;
+    this.distanceB = distanceB;
+  }
+
+  /**
+   * @return The network the service area was found on
+   */
+  public CompactNetwork getNetwork() {
+    return network;
+  }
+
+  /**
+   * @return The maximum network distance of the service area
+   */
+  public double getDistance() {
+    return distance;
+  }
+
+  /**
+   * @return The number of reached edges
+   */
+  public int size() {
+    return edges.length;
+  }
+
+  /**
+   * @return The network edge id of the i'th reached edge
+   */
+  public int getEdge(int i) {
+    return edges[i];
+  }
+
+  /**
+   * @return The network distance to node A of the i'th reached edge (infinite
+   *         if the node was not reached)
+   */
+  public double getDistanceA(int i) {
+    return distanceA[i];
+  }
+
+  /**
+   * @return The network distance to node B of the i'th reached edge (infinite
+   *         if the node was not reached)
+   */
+  public double getDistanceB(int i) {
+    return distanceB[i];
+  }
+
+  /**
+   * @return The minimum network distance to any point of the i'th reached edge
+   */
+  public double getMinimumDistance(int i) {
+    if (isOriginEdge(edges[i])) {
+      return 0.0;
+    }
+    return Math.min(distanceA[i], distanceB[i]);
+  }
+
+  private boolean isOriginEdge(int edge) {
+    for (NetworkLocation origin : origins) {
+      if (origin.getEdge() == edge) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Restricts the service area to a shorter network distance, the node
+   * distances are already known so no further traversal is needed
+   *
+   * @param threshold
+   *          The network distance (no more than the service area distance)
+   * @return The service area within threshold of the origin
+   */
+  public CompactServiceArea within(double threshold) {
+    if (threshold >= distance) {
+      return this;
+    }
+    int[] keep = new int[edges.length];
+    int count = 0;
+    for (int i = 0; i < edges.length; i++) {
+      if (distanceA[i] <= threshold || distanceB[i] <= threshold
+          || isOriginEdge(edges[i])) {
+        keep[count++] = i;
+      }
+    }
+    int[] bandEdges = new int[count];
+    double[] bandDistanceA = new double[count];
+    double[] bandDistanceB = new double[count];
+    for (int j = 0; j < count; j++) {
+      bandEdges[j] = edges[keep[j]];
+      bandDistanceA[j] = distanceA[keep[j]];
+      bandDistanceB[j] = distanceB[keep[j]];
+    }
+    return new CompactServiceArea(network, origins, threshold, bandEdges,
+        bandDistanceA, bandDistanceB);
+  }
+
+  /**
+   * Works out the reached parts of an edge as sorted, non overlapping
+   * intervals of distance along the edge geometry
+   *
+   * @param i
+   *          The index of the reached edge
+   * @return pairs of (start, end) distances along the edge
+   */
+  double[] getExtent(int i) {
+    int edge = edges[i];
+    double length = network.getEdgeLength(edge);
+    double[] intervals = new double[2 * (2 + origins.length)];
+    int count = 0;
+    if (distanceA[i] <= distance) {
+      intervals[count++] = 0.0;
+      intervals[count++] = Math.min(length, distance - distanceA[i]);
+    }
+    if (distanceB[i] <= distance) {
+      intervals[count++] = Math.max(0.0, length - (distance - distanceB[i]));
+      intervals[count++] = length;
+    }
+    for (NetworkLocation origin : origins) {
+      if (origin.getEdge() == edge) {
+        intervals[count++] = Math.max(0.0, origin.getOffset() - distance);
+        intervals[count++] = Math.min(length, origin.getOffset() + distance);
+      }
+    }
+    return mergeIntervals(intervals, count);
+  }
+
+  private static double[] mergeIntervals(double[] intervals, int count) {
+    // insertion sort on start, there are only ever a few intervals
+    for (int j = 2; j < count; j += 2) {
+      double start = intervals[j];
+      double end = intervals[j + 1];
+      int k = j - 2;
+      while (k >= 0 && intervals[k] > start) {
+        intervals[k + 2] = intervals[k];
+        intervals[k + 3] = intervals[k + 1];
+        k -= 2;
+      }
+      intervals[k + 2] = start;
+      intervals[k + 3] = end;
+    }
+    int merged = 0;
+    for (int j = 0; j < count; j += 2) {
+      if (merged > 0 && intervals[j] <= intervals[merged - 1]) {
+        intervals[merged - 1] = Math.max(intervals[merged - 1],
+            intervals[j + 1]);
+      } else {
+        intervals[merged++] = intervals[j];
+        intervals[merged++] = intervals[j + 1];
+      }
+    }
+    double[] result = new double[merged];
+    System.arraycopy(intervals, 0, result, 0, merged);
+    return result;
+  }
+
+  /**
+   * Creates the line geometries of the service area, reached parts of edges
+   * are cut from the packed edge coordinates
+   *
+   * @return The service area lines
+   */
+  public List<LineString> getLines() {
+    List<LineString> lines = new ArrayList<LineString>(edges.length);
+    for (int i = 0; i < edges.length; i++) {
+      addLines(i, lines);
+    }
+    return lines;
+  }
+
+  private void addLines(int i, List<LineString> lines) {
+    int edge = edges[i];
+    double length = network.getEdgeLength(edge);
+    double[] extent = getExtent(i);
+    for (int j = 0; j < extent.length; j += 2) {
+      if (extent[j + 1] > extent[j] || extent[j + 1] >= length) {
+        lines.add(network.getEdgeGeometry(edge, extent[j], extent[j + 1]));
+      }
+    }
+  }
+
+  /**
+   * Creates a line feature for each reached part of an edge, with the minimum
+   * network distance to the edge as the "Distance" attribute
+   *
+   * @return The service area edges as SimpleFeatures
+   */
+  public List<SimpleFeature> getFeatures() {
+    SimpleFeatureType edgeType = createEdgeFeatureType();
+    List<SimpleFeature> features = new ArrayList<SimpleFeature>(edges.length);
+    List<LineString> lines = new ArrayList<LineString>();
+    for (int i = 0; i < edges.length; i++) {
+      lines.clear();
+      addLines(i, lines);
+      for (LineString line : lines) {
+        SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(edgeType);
+        sfb.add(line);
+        SimpleFeature feature = sfb.buildFeature(null);
+        feature.setAttribute(DISTANCE_ATTRIBUTE, getMinimumDistance(i));
+        features.add(feature);
+      }
+    }
+    return features;
+  }
+
+  private SimpleFeatureType createEdgeFeatureType() {
+    SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+    builder.setName("Edge");
+    builder.setCRS(network.getCoordinateReferenceSystem());
+    builder.add("Edge", LineString.class);
+    builder.add("Name", String.class);
+    builder.add(DISTANCE_ATTRIBUTE, Double.class);
+    return builder.buildFeatureType();
+  }
+}
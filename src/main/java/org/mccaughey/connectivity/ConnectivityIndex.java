@@ -5,12 +5,15 @@
 package org.mccaughey.connectivity;
 
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.factory.CommonFactoryFinder;
@@ -19,7 +22,6 @@ import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.graph.build.feature.FeatureGraphGenerator;
 import org.geotools.graph.build.line.LineStringGraphGenerator;
-import org.geotools.graph.structure.Edge;
 import org.geotools.graph.structure.Graph;
 import org.geotools.graph.structure.Node;
 import org.opengis.feature.Feature;
@@ -40,6 +42,11 @@ import org.slf4j.LoggerFactory;
 public final class ConnectivityIndex {
 
   static final Logger LOGGER = LoggerFactory.getLogger(ConnectivityIndex.class);
+  /**
+   * The least number of legs of a node counted as a connection
+   */
+  static final int CONNECTION_DEGREE = 3;
+  private static final int[] NO_DEGREES = new int[0];
 
   /**
    * Private hidden constructor as this is a utility style class
@@ -59,6 +66,26 @@ public final class ConnectivityIndex {
    */
   public static SimpleFeature connectivity(SimpleFeatureSource featureSource,
       SimpleFeature roiFeature) throws IOException {
+    return connectivity(featureSource, roiFeature, NO_DEGREES);
+  }
+
+  /**
+   * Calculates the connectivity of a region upon a network, also counting the
+   * nodes with at least each of several other numbers of legs
+   * 
+   * @param featureSource
+   *          the feature source containing features in the network
+   * @param roi
+   *          the region of interest
+   * @param degrees
+   *          the other numbers of legs to count nodes for, each more than 3
+   *          and listed once, each count is added as a
+   *          "Connections&lt;degree&gt;" attribute
+   * @return returns the connections per square kilometer in the roi
+   * @throws IOException
+   */
+  public static SimpleFeature connectivity(SimpleFeatureSource featureSource,
+      SimpleFeature roiFeature, int[] degrees) throws IOException {
     // System.out.println(writeFeature(roiFeature));
     LOGGER
         .debug("Calculating connectivity with feature {}", roiFeature.getID());
@@ -66,6 +93,105 @@ public final class ConnectivityIndex {
         .getValue();
 
     Graph graph = buildLineNetwork(featureSource, roiGeom);
+    int[] thresholds = thresholds(degrees);
+    return buildConnectivityFeature(roiFeature, roiGeom, thresholds,
+        countConnections(graph, roiGeom, thresholds));
+  }
+
+  /**
+   * Calculates the connectivity of a region upon a prepared network, the
+   * network is already noded and indexed so only the edges near the region are
+   * looked at
+   * 
+   * @param network
+   *          the prepared network
+   * @param roiFeature
+   *          the region of interest
+   * @return returns the connections per square kilometer in the roi
+   */
+  public static SimpleFeature connectivity(CompactNetwork network,
+      SimpleFeature roiFeature) {
+    return connectivity(network, roiFeature, NO_DEGREES);
+  }
+
+  /**
+   * Calculates the connectivity of a region upon a prepared network, also
+   * counting the nodes with at least each of several other numbers of legs
+   * 
+   * @param network
+   *          the prepared network
+   * @param roiFeature
+   *          the region of interest
+   * @param degrees
+   *          the other numbers of legs to count nodes for, each more than 3
+   *          and listed once, each count is added as a
+   *          "Connections&lt;degree&gt;" attribute
+   * @return returns the connections per square kilometer in the roi
+   */
+  public static SimpleFeature connectivity(CompactNetwork network,
+      SimpleFeature roiFeature, int[] degrees) {
+    LOGGER
+        .debug("Calculating connectivity with feature {}", roiFeature.getID());
+    Geometry roiGeom = (Geometry) roiFeature.getDefaultGeometryProperty()
+        .getValue();
+    int[] thresholds = thresholds(degrees);
+    return buildConnectivityFeature(roiFeature, roiGeom, thresholds,
+        countConnections(network, roiGeom, thresholds));
+  }
+
+  /**
+   * The connection degree followed by any other degrees to count
+   */
+  static int[] thresholds(int[] degrees) {
+    checkDegrees(degrees);
+    int[] thresholds = new int[degrees.length + 1];
+    thresholds[0] = CONNECTION_DEGREE;
+    System.arraycopy(degrees, 0, thresholds, 1, degrees.length);
+    return thresholds;
+  }
+
+  /**
+   * Checks the other degrees to count are each more than the connection
+   * degree and listed once. A prepared network has its 2 legged nodes
+   * contracted away, so lower degrees would not be counted the same on every
+   * path, and a repeated degree would add the same attribute twice.
+   * 
+   * @throws IllegalArgumentException
+   *           If a degree is not more than the connection degree or repeated
+   */
+  static void checkDegrees(int[] degrees) {
+    for (int i = 0; i < degrees.length; i++) {
+      if (degrees[i] <= CONNECTION_DEGREE) {
+        throw new IllegalArgumentException("Node degree " + degrees[i]
+            + " must be more than " + CONNECTION_DEGREE);
+      }
+      for (int j = 0; j < i; j++) {
+        if (degrees[j] == degrees[i]) {
+          throw new IllegalArgumentException("Node degree " + degrees[i]
+              + " is listed more than once");
+        }
+      }
+    }
+  }
+
+  /**
+   * Builds a copy of a region feature with "Connectivity" (connections per
+   * square kilometre), "Area" and "Connections" attributes added
+   */
+  static SimpleFeature buildConnectivityFeature(
+      SimpleFeature roiFeature, Geometry roiGeom, int connections) {
+    return buildConnectivityFeature(roiFeature, roiGeom,
+        new int[] { CONNECTION_DEGREE }, new int[] { connections });
+  }
+
+  /**
+   * Builds a copy of a region feature with "Connectivity", "Area" and
+   * "Connections" attributes from the first threshold count, and a
+   * "Connections&lt;degree&gt;" attribute for each other threshold
+   */
+  static SimpleFeature buildConnectivityFeature(SimpleFeature roiFeature,
+      Geometry roiGeom, int[] thresholds, int[] counts) {
+    int connections = counts[0];
     // Construct a new feature with a "Connectivity" attribute to store
     // connectivity in //
     SimpleFeatureType sft = (SimpleFeatureType) roiFeature.getType();
@@ -76,18 +202,26 @@ public final class ConnectivityIndex {
     stb.add("Connectivity", Double.class);
     stb.add("Area", Double.class);
     stb.add("Connections", Integer.class);
+    for (int t = 1; t < thresholds.length; t++) {
+      stb.add("Connections" + thresholds[t], Integer.class);
+    }
     SimpleFeatureType connectivityFeatureType = stb.buildFeatureType();
     SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(connectivityFeatureType);
     sfb.addAll(roiFeature.getAttributes());
 
     double area = roiGeom.getArea();
-    double connectivity = countConnections(graph, roiFeature)
-        / (area / 1000000); // FIXME: converting to sq. km. -- bit dodgy should
-                            // check units but assuming in metres
+    double connectivity = connections / (area / 1000000); // FIXME: converting
+                                                          // to sq. km. -- bit
+                                                          // dodgy should check
+                                                          // units but assuming
+                                                          // in metres
     sfb.add(connectivity);
     sfb.add(area);
 
-    sfb.add(countConnections(graph, roiFeature));
+    sfb.add(connections);
+    for (int t = 1; t < counts.length; t++) {
+      sfb.add(counts[t]);
+    }
     SimpleFeature connectivityFeature = sfb.buildFeature(roiFeature.getID());
 
     return connectivityFeature;
@@ -141,37 +275,82 @@ public final class ConnectivityIndex {
   }
 
   /**
-   * Counts all the connections (3 legged nodes) in a graph
+   * Counts the nodes of a graph within a region for each of several
+   * thresholds, the region is prepared once so each node's point in polygon
+   * test is indexed rather than a scan of the region's vertices
    * 
    * @param graph
    *          the graph to process.
-   * @return returns the total number of connections
+   * @param roiGeom
+   *          the region of interest
+   * @param thresholds
+   *          the least number of legs of the nodes counted for each count
+   * @return returns the number of nodes with at least each threshold of legs
    */
-  private static int countConnections(Graph graph, SimpleFeature roi) {
-    int count = 0;
-    // System.out.println("Nodes: " + graph.getNodes().size() );
-    // List<Geometry> geometries = new ArrayList();
-    List<SimpleFeature> features = new ArrayList();
+  private static int[] countConnections(Graph graph, Geometry roiGeom,
+      int[] thresholds) {
+    int[] counts = new int[thresholds.length];
+    int least = least(thresholds);
+    PreparedGeometry prepared = PreparedGeometryFactory.prepare(roiGeom);
     for (Node node : (Collection<Node>) graph.getNodes()) {
-      if (node.getDegree() >= 3) { // 3 or more legged nodes are connected
-        // System.out.println("connection!");
+      if (node.getDegree() >= least
+          && prepared.intersects((Point) node.getObject())) {
+        count(node.getDegree(), thresholds, counts);
+      }
+    }
+    return counts;
+  }
 
-        for (Edge edge : (List<Edge>) node.getEdges()) {
-          features.add(((SimpleFeature) edge.getObject()));
-        }
-        Point nPoint = ((Point) node.getObject());
-        Geometry roiGeom = (Geometry) (roi.getDefaultGeometry());
-        if (roiGeom.intersects(nPoint)) {
-          count++;
+  /**
+   * Counts the nodes of a prepared network within a region for each of
+   * several thresholds, nodes are found from the indexed edges near the
+   * region
+   * 
+   * @param network
+   *          the prepared network
+   * @param roiGeom
+   *          the region of interest
+   * @param thresholds
+   *          the least number of legs of the nodes counted for each count
+   * @return returns the number of nodes with at least each threshold of legs
+   */
+  static int[] countConnections(CompactNetwork network,
+      Geometry roiGeom, int[] thresholds) {
+    int[] counts = new int[thresholds.length];
+    int least = least(thresholds);
+    PreparedGeometry prepared = PreparedGeometryFactory.prepare(roiGeom);
+    GeometryFactory factory = roiGeom.getFactory();
+    Set<Integer> seen = new HashSet<Integer>();
+    for (Integer edge : network.getSnapIndex().query(
+        roiGeom.getEnvelopeInternal())) {
+      for (int node : new int[] { network.getNodeA(edge),
+          network.getNodeB(edge) }) {
+        int degree = network.getDegree(node);
+        if (seen.add(node)
+            && degree >= least
+            && prepared.intersects(factory.createPoint(network
+                .getNodeCoordinate(node)))) {
+          count(degree, thresholds, counts);
         }
-        // count++;
       }
     }
-    // GeometryCollection collection = new
-    // GeometryCollection((Geometry[])geometries.toArray(),new
-    // GeometryFactory());
-    // System.out.println(writeFeatures(DataUtilities.collection(features)));
-    return count;
+    return counts;
+  }
+
+  static int least(int[] thresholds) {
+    int least = Integer.MAX_VALUE;
+    for (int threshold : thresholds) {
+      least = Math.min(least, threshold);
+    }
+    return least;
+  }
+
+  static void count(int degree, int[] thresholds, int[] counts) {
+    for (int t = 0; t < thresholds.length; t++) {
+      if (degree >= thresholds[t]) {
+        counts[t]++;
+      }
+    }
   }
 
   // private static String writeFeature(SimpleFeature feature) {
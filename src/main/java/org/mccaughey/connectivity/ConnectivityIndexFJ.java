@@ -4,7 +4,12 @@
  */
 package org.mccaughey.connectivity;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import jsr166y.ForkJoinPool;
 import jsr166y.RecursiveAction;
@@ -13,15 +18,23 @@ import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.feature.DefaultFeatureCollection;
-import org.geotools.feature.FeatureCollections;
-import org.geotools.feature.FeatureIterator;
+import org.mccaughey.utilities.CollectionFeatureSink;
+import org.mccaughey.utilities.CostPartition;
+import org.mccaughey.utilities.FeatureSink;
+import org.mccaughey.utilities.HilbertOrder;
 import org.opengis.feature.simple.SimpleFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.geom.Geometry;
+
 /**
  * Calculates connectivity for a set of regions using a Fork/Join for
- * concurrency
+ * concurrency. Regions are calculated a window at a time, each task puts its
+ * results in its own slots of a shared array (so tasks never contend for a
+ * collection) and once a window is complete the results are written to a
+ * FeatureSink, in input order if requested. A region that fails is recorded
+ * and left out rather than failing the whole batch.
  * 
  * @author amacaulay
  */
@@ -30,9 +43,32 @@ public class ConnectivityIndexFJ extends RecursiveAction {
   private static final long serialVersionUID = 1L;
   static final Logger LOGGER = LoggerFactory
       .getLogger(ConnectivityIndexFJ.class);
+  private static final int CHUNKS_PER_THREAD = 8;
+  private static final int WINDOW_SIZE = 4096;
   private transient DefaultFeatureCollection results;
   private final transient SimpleFeatureSource roadsFeatureSource;
+  private final transient CompactNetwork network;
   private final transient SimpleFeatureCollection regions;
+  private transient List<SimpleFeature> inputList;
+  private transient List<SimpleFeature> regionList;
+  private final transient ConnectivityIndexFJ root;
+  private transient FeatureSink sink;
+  private transient IOException sinkFailure;
+  private transient SimpleFeature[] slots;
+  private transient Exception[] failures;
+  private boolean[] done;
+  private int[] inputPosition;
+  private int[] slotOf;
+  private double[] costs;
+  private int start;
+  private int end;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private double chunkCost;
+  private boolean spatialOrder;
+  private boolean inputOrder;
+  private int[] degrees = new int[0];
+  private int next;
+  private int written;
 
   public SimpleFeatureCollection getResults() {
     return results;
@@ -47,98 +83,281 @@ public class ConnectivityIndexFJ extends RecursiveAction {
   public ConnectivityIndexFJ(SimpleFeatureSource roadsFeatureSource,
       SimpleFeatureCollection regionsFeatureCollection) {
     this.roadsFeatureSource = roadsFeatureSource;
+    this.network = null;
+    this.regions = regionsFeatureCollection;
+    this.root = null;
+    this.results = new DefaultFeatureCollection();
+  }
+
+  /**
+   * @param network
+   *          The prepared road network to count connections from
+   * @param regions
+   *          The regions of interest to calculate connectivity in
+   */
+  public ConnectivityIndexFJ(CompactNetwork network,
+      SimpleFeatureCollection regionsFeatureCollection) {
+    this.roadsFeatureSource = null;
+    this.network = network;
     this.regions = regionsFeatureCollection;
+    this.root = null;
     this.results = new DefaultFeatureCollection();
   }
 
   /**
-   * Computes the connectivity index, for a single region, otherwise if there
-   * are multiple regions it splits the task into single region operations and
-   * invokes separately note: this is slightly different from normal fork/join
-   * which bisects until the threshold condition is met.
+   * A sub task for a range of the regions
+   */
+  private ConnectivityIndexFJ(ConnectivityIndexFJ root, int start, int end,
+      double chunkCost) {
+    this.roadsFeatureSource = root.roadsFeatureSource;
+    this.network = root.network;
+    this.regions = root.regions;
+    this.root = root;
+    this.start = start;
+    this.end = end;
+    this.chunkCost = chunkCost;
+  }
+
+  /**
+   * @param parallelism
+   *          The number of threads to calculate connectivity with (by default
+   *          the number of processors)
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * @param chunkCost
+   *          The largest estimated cost (total region area) to calculate as a
+   *          single task, by default the cost of each window of regions is
+   *          spread over a few tasks per thread
+   */
+  public void setChunkCost(double chunkCost) {
+    this.chunkCost = chunkCost;
+  }
+
+  /**
+   * @param spatialOrder
+   *          true to calculate the regions along a Hilbert curve, so each task
+   *          covers regions that are close together and reads the same part
+   *          of the network
+   */
+  public void setSpatialOrder(boolean spatialOrder) {
+    this.spatialOrder = spatialOrder;
+  }
+
+  /**
+   * @param inputOrder
+   *          true to write the results in the same order as the regions were
+   *          given, rather than the order they were calculated in (which only
+   *          differs with spatial order)
+   */
+  public void setInputOrder(boolean inputOrder) {
+    this.inputOrder = inputOrder;
+  }
+
+  /**
+   * @param degrees
+   *          Other numbers of legs to count the nodes of each region for, as
+   *          well as connections (3 or more legged nodes), each more than 3
+   *          and listed once
+   */
+  public void setDegrees(int[] degrees) {
+    ConnectivityIndex.checkDegrees(degrees);
+    this.degrees = degrees.clone();
+  }
+
+  /**
+   * @return The regions that could not be calculated, by feature ID in input
+   *         order, with the reason each failed
+   */
+  public Map<String, Exception> getFailures() {
+    Map<String, Exception> failed = new LinkedHashMap<String, Exception>();
+    for (int p = 0; failures != null && p < failures.length; p++) {
+      if (failures[p] != null) {
+        failed.put(inputList.get(p).getID(), failures[p]);
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * Calculates the regions a window at a time, writing each completed window
+   * to the sink. Only this (root) task writes to the sink.
    */
   @Override
   protected void compute() {
-    if (regions.size() <= 100) { // if there is only one region compute the
-      SimpleFeatureIterator regionsIter = regions.features(); // connectivity
-                                                              // and store in
-                                                              // results
-      try {
-
-        while (regionsIter.hasNext()) {
-          SimpleFeature region = regionsIter.next();
-          SimpleFeature connectivityFeature = ConnectivityIndex.connectivity(
-              roadsFeatureSource, region);
-          results.add(connectivityFeature);
-        }
-        LOGGER.debug("Completed {} features connectivity",regions.size());
-      } catch (Exception e) {
-        LOGGER.debug("Completing with exception {}",e.getMessage());
-        this.completeExceptionally(e);
-      } finally {
-        regionsIter.close();
+    if (root != null) {
+      computeRange();
+      return;
+    }
+    prepare();
+    if (sink == null) {
+      sink = new CollectionFeatureSink(results);
+    }
+    try {
+      for (int from = 0; from < regionList.size(); from += WINDOW_SIZE) {
+        int to = Math.min(regionList.size(), from + WINDOW_SIZE);
+        double windowChunkCost = chunkCost > 0 ? chunkCost : CostPartition
+            .cost(costs, from, to) / (parallelism * CHUNKS_PER_THREAD);
+        new ConnectivityIndexFJ(this, from, to, windowChunkCost).invoke();
+        flush();
       }
-    } else { // otherwise split the regions into single region arrays and
-             // invokeAll
-      ArrayList<ConnectivityIndexFJ> indexers = new ArrayList<ConnectivityIndexFJ>();
-      // for (int i = 0; i < regions.length; i++) {
-      SimpleFeatureIterator features = regions.features();
-      int featureCount = 0;
-      DefaultFeatureCollection regionsSubCollection = new DefaultFeatureCollection();
-      while (features.hasNext()) {
-        SimpleFeature feature = features.next();
-        regionsSubCollection.add(feature);
-       
-        featureCount++;
-        if (featureCount == 100) {
-          ConnectivityIndexFJ cifj = new ConnectivityIndexFJ(roadsFeatureSource,
-              regionsSubCollection);
-          indexers.add(cifj);
-          regionsSubCollection = new DefaultFeatureCollection();
-          featureCount = 0;
+    } catch (IOException e) {
+      LOGGER.error("Failed to write connectivity results: {}", e.getMessage());
+      sinkFailure = e;
+    }
+  }
+
+  /**
+   * Computes the connectivity index for a range of regions. The work is split
+   * in two, by estimated cost (region area) rather than by number of regions,
+   * until a range is within the chunk cost, so that a few large regions do not
+   * leave one thread working long after the others have finished.
+   */
+  private void computeRange() {
+    if (end - start <= 1
+        || CostPartition.cost(root.costs, start, end) <= chunkCost) {
+      for (int i = start; i < end; i++) {
+        SimpleFeature region = root.regionList.get(i);
+        try {
+          SimpleFeature connectivityFeature;
+          if (network != null) {
+            connectivityFeature = ConnectivityIndex.connectivity(network,
+                region, root.degrees);
+          } else {
+            connectivityFeature = ConnectivityIndex.connectivity(
+                roadsFeatureSource, region, root.degrees);
+          }
+          root.slots[root.slotOf[i]] = connectivityFeature;
+        } catch (Exception e) {
+          LOGGER.error("Connectivity failed for region " + region.getID(), e);
+          root.failures[root.inputPosition[i]] = e;
         }
+        root.done[root.slotOf[i]] = true;
       }
-      ConnectivityIndexFJ cifj = new ConnectivityIndexFJ(roadsFeatureSource,
-          regionsSubCollection);
-      indexers.add(cifj);
-      invokeAll(indexers);
-      features.close();
-      for (ConnectivityIndexFJ ci : indexers) {
-        // System.out.println("Appending result: " +
-        // String.valueOf(cifj.results[0]));
-        if (ci.isCompletedAbnormally()) {
-          this.completeExceptionally(ci.getException());
-        }
-        results.addAll((SimpleFeatureCollection)ci.results);
+      LOGGER.debug("Completed {} features connectivity", end - start);
+    } else {
+      int middle = CostPartition.split(root.costs, start, end);
+      invokeAll(new ConnectivityIndexFJ(root, start, middle, chunkCost),
+          new ConnectivityIndexFJ(root, middle, end, chunkCost));
+    }
+  }
+
+  /**
+   * Writes the results that are ready, up to the first slot that is not yet
+   * calculated. In calculation order every slot of a completed window is
+   * ready, in input order a result waits for those before it.
+   */
+  private void flush() throws IOException {
+    while (next < slots.length && done[next]) {
+      if (slots[next] != null) {
+        sink.write(slots[next]);
+        slots[next] = null;
+        written++;
+      }
+      next++;
+    }
+  }
 
+  /**
+   * Reads the regions, estimates the cost of each and assigns each its
+   * result slot
+   */
+  private void prepare() {
+    regionList = new ArrayList<SimpleFeature>();
+    SimpleFeatureIterator regionsIter = regions.features();
+    try {
+      while (regionsIter.hasNext()) {
+        regionList.add(regionsIter.next());
+      }
+    } finally {
+      regionsIter.close();
+    }
+    inputList = regionList;
+    inputPosition = new int[regionList.size()];
+    for (int i = 0; i < inputPosition.length; i++) {
+      inputPosition[i] = i;
+    }
+    if (spatialOrder) {
+      inputList = new ArrayList<SimpleFeature>(regionList);
+      HilbertOrder.sort(regionList);
+      Map<SimpleFeature, Integer> inputIndex = new IdentityHashMap<SimpleFeature, Integer>();
+      for (int p = 0; p < inputList.size(); p++) {
+        inputIndex.put(inputList.get(p), p);
+      }
+      for (int i = 0; i < inputPosition.length; i++) {
+        inputPosition[i] = inputIndex.get(regionList.get(i));
       }
     }
+    slotOf = new int[regionList.size()];
+    for (int i = 0; i < slotOf.length; i++) {
+      slotOf[i] = inputOrder ? inputPosition[i] : i;
+    }
+    slots = new SimpleFeature[regionList.size()];
+    done = new boolean[regionList.size()];
+    failures = new Exception[regionList.size()];
+    next = 0;
+    written = 0;
+    double[] regionCosts = new double[regionList.size()];
+    for (int i = 0; i < regionCosts.length; i++) {
+      Geometry geom = (Geometry) regionList.get(i).getDefaultGeometry();
+      // every region costs something, even if it has no area
+      regionCosts[i] = 1.0 + (geom == null ? 0.0 : geom.getArea());
+    }
+    costs = CostPartition.prefixSums(regionCosts);
   }
 
   /**
    * Sets up the ForkJoinPool and then calls invoke to calculate connectivity
-   * for all regions available
+   * for all regions available, the results are available from getResults
    */
   public void connectivity() {
-    // Get the available processors, processors==threads is probably best?
-    Runtime runtime = Runtime.getRuntime();
-    int nProcessors = runtime.availableProcessors();
-    int nThreads = nProcessors;
+    results = new DefaultFeatureCollection();
+    try {
+      connectivity(new CollectionFeatureSink(results));
+    } catch (IOException e) {
+      // an in memory collection does not fail to write
+      throw new IllegalStateException(e);
+    }
+  }
 
-    LOGGER.debug("Initialising ForkJoinPool with {}", nThreads);
+  /**
+   * Sets up the ForkJoinPool and calculates connectivity for all regions
+   * available, writing each window of results to a sink as it completes. The
+   * sink is written from a single thread and is not closed. In input order
+   * with spatial order a result is held until all those before it in the
+   * input are complete.
+   * 
+   * @param sink
+   *          Where to write the region connectivity features
+   * @return The number of features written
+   * @throws IOException
+   *           If the sink fails to write a result
+   */
+  public int connectivity(FeatureSink sink) throws IOException {
+    this.sink = sink;
+    this.sinkFailure = null;
+    LOGGER.debug("Initialising ForkJoinPool with {}", parallelism);
     // Fork/Join handles threads for me, all I do is invoke
-    ForkJoinPool fjPool = new ForkJoinPool(nThreads);
+    ForkJoinPool fjPool = new ForkJoinPool(parallelism);
 
     try {
-
+      reinitialize();
       fjPool.invoke(this);
-      if (this.isCompletedAbnormally()) {
-        LOGGER.error("ForkJoin connectivity calculation failed: {}", this
-            .getException().toString());
-        this.completeExceptionally(this.getException());
-      }
     } finally {
       fjPool.shutdown();
+      this.sink = null;
+    }
+    if (sinkFailure != null) {
+      throw sinkFailure;
+    }
+    int failed = getFailures().size();
+    if (failed > 0) {
+      LOGGER.error("Connectivity failed for {} of {} regions", failed,
+          regionList.size());
     }
+    return written;
   }
 }
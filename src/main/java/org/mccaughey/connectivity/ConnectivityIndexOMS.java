@@ -4,7 +4,9 @@
  */
 package org.mccaughey.connectivity;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 import oms3.annotations.Description;
 import oms3.annotations.Execute;
@@ -13,10 +15,13 @@ import oms3.annotations.Name;
 import oms3.annotations.Out;
 
 import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  * This is a wrapper for ConnectivityIndex that provides OMS3 annotations so it
  * can be used in OMS3 workflows, scripts etc.
@@ -29,6 +34,12 @@ public class ConnectivityIndexOMS {
 
   static final Logger LOGGER = LoggerFactory
       .getLogger(ConnectivityIndexOMS.class);
+  /**
+   * How far past the neighbourhoods' bounds the single pass network is read,
+   * every edge meeting a node within a neighbourhood already crosses the
+   * bounds, this only covers nodes lying on them
+   */
+  private static final double EXTENT_MARGIN = 1.0;
   /**
    * The road network to count connections from
    */
@@ -36,12 +47,40 @@ public class ConnectivityIndexOMS {
   @Name("Network data set")
   @Description("The network data set to count connections from")
   public SimpleFeatureSource network;
+  /**
+   * A prepared network file, used instead of the network data set
+   */
+  @In
+  @Name("Network file")
+  @Description("A prepared network file (see netexport) to count connections from instead of the network data set")
+  public File networkFile;
   /**
    * The region if interest
    */
   @In
   @Name("Neighbourhoods")
   public SimpleFeatureSource regions;
+  /**
+   * Whether to process the regions in spatial order
+   */
+  @In
+  @Name("Spatial order")
+  @Description("Process neighbourhoods along a Hilbert curve so that neighbouring neighbourhoods are processed together")
+  public Boolean spatialOrder = Boolean.FALSE;
+  /**
+   * Whether to count connections for all regions in one pass over the network
+   */
+  @In
+  @Name("Single pass")
+  @Description("Count connections for all neighbourhoods in one pass over the whole network, rather than one network query per neighbourhood")
+  public Boolean singlePass = Boolean.FALSE;
+  /**
+   * Other numbers of legs to count nodes for
+   */
+  @In
+  @Name("Node degrees")
+  @Description("Also count the nodes with at least each of these numbers of legs (each more than 3, listed once), as Connections<degree> attributes")
+  public List<Integer> degrees;
 
   /**
    * The resulting connectivity
@@ -64,8 +103,28 @@ public class ConnectivityIndexOMS {
       SimpleFeatureSource networkSource = network;
       SimpleFeatureSource regionSource = regions;
 
-      ConnectivityIndexFJ cifj = new ConnectivityIndexFJ(networkSource,
-          regionSource.getFeatures());
+      if (Boolean.TRUE.equals(singlePass)) {
+        SimpleFeatureCollection regionFeatures = regionSource.getFeatures();
+        CompactNetwork compact = prepareNetwork(networkSource, regionFeatures);
+        LOGGER.info("Computing connectivity for all regions in one pass");
+        results = DataUtilities.source(DataUtilities
+            .collection(ConnectivityJoin.connectivity(compact,
+                regionFeatures, degreeArray())));
+        LOGGER.info("Completed Connectivity calculation");
+        return;
+      }
+      ConnectivityIndexFJ cifj;
+      if (networkFile != null) {
+        cifj = new ConnectivityIndexFJ(NetworkFile.read(networkFile),
+            regionSource.getFeatures());
+      } else {
+        cifj = new ConnectivityIndexFJ(networkSource,
+            regionSource.getFeatures());
+      }
+      cifj.setSpatialOrder(Boolean.TRUE.equals(spatialOrder));
+      // results are collected in memory, so keeping input order costs nothing
+      cifj.setInputOrder(true);
+      cifj.setDegrees(degreeArray());
       LOGGER.info("Computing connectivity for {} regions");
       cifj.connectivity();
       results = DataUtilities.source(cifj.getResults());
@@ -78,9 +137,38 @@ public class ConnectivityIndexOMS {
     }
   }
   
+  /**
+   * Reads the network file, or builds the network around the neighbourhoods
+   * rather than from the whole network data set
+   */
+  private CompactNetwork prepareNetwork(SimpleFeatureSource networkSource,
+      SimpleFeatureCollection regionFeatures) throws IOException {
+    if (networkFile != null) {
+      return NetworkFile.read(networkFile);
+    }
+    Envelope extent = regionFeatures.getBounds();
+    if (extent == null || extent.isNull()) {
+      return CompactNetwork.build(networkSource);
+    }
+    extent = new Envelope(extent);
+    extent.expandBy(EXTENT_MARGIN);
+    return CompactNetwork.build(networkSource, extent);
+  }
+
+  private int[] degreeArray() {
+    if (degrees == null) {
+      return new int[0];
+    }
+    int[] array = new int[degrees.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = degrees.get(i);
+    }
+    return array;
+  }
+
   private void validateInputs() {
 
-    if (network == null) {
+    if (network == null && networkFile == null) {
       throw new IllegalArgumentException(
           "Connectivity Index Error: A road network was not provided");
     }
@@ -89,5 +177,18 @@ public class ConnectivityIndexOMS {
       throw new IllegalArgumentException(
           "Connectivity Index Error: Regions were not provided by the previous component");
     }
+
+    if (degrees != null) {
+      if (degrees.contains(null)) {
+        throw new IllegalArgumentException(
+            "Connectivity Index Error: Node degrees must be numbers");
+      }
+      try {
+        ConnectivityIndex.checkDegrees(degreeArray());
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Connectivity Index Error: "
+            + e.getMessage(), e);
+      }
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Calculates the Connectivity Index for many regions in a single pass over a
+ * prepared network. Node degrees are already known for the whole network, so
+ * rather than building a graph per region, every connection (3 or more
+ * legged node) is joined to the regions containing it through an STRtree of
+ * region envelopes and prepared region geometries. Overlapping regions share
+ * the one pass.
+ * 
+ * @author amacaulay
+ */
+public final class ConnectivityJoin {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(ConnectivityJoin.class);
+
+  private ConnectivityJoin() {
+  }
+
+  /**
+   * Calculates the connectivity of each region
+   * 
+   * @param network
+   *          The prepared network
+   * @param regions
+   *          The regions of interest
+   * @return The regions with "Connectivity", "Area" and "Connections"
+   *         attributes added (as ConnectivityIndex.connectivity), in the same
+   *         order, regions without a geometry (or whose connectivity fails)
+   *         are logged and left out
+   */
+  public static List<SimpleFeature> connectivity(CompactNetwork network,
+      SimpleFeatureCollection regions) {
+    return connectivity(network, regions, new int[0]);
+  }
+
+  /**
+   * Calculates the connectivity of each region, also counting the nodes with
+   * at least each of several other numbers of legs
+   * 
+   * @param network
+   *          The prepared network
+   * @param regions
+   *          The regions of interest
+   * @param degrees
+   *          The other numbers of legs to count nodes for, each more than 3
+   *          and listed once, each count is added as a
+   *          "Connections&lt;degree&gt;" attribute
+   * @return The regions with "Connectivity", "Area" and "Connections"
+   *         attributes added (as ConnectivityIndex.connectivity), in the same
+   *         order, regions without a geometry (or whose connectivity fails)
+   *         are logged and left out
+   */
+  public static List<SimpleFeature> connectivity(CompactNetwork network,
+      SimpleFeatureCollection regions, int[] degrees) {
+    List<SimpleFeature> regionList = new ArrayList<SimpleFeature>();
+    SimpleFeatureIterator iter = regions.features();
+    try {
+      while (iter.hasNext()) {
+        regionList.add(iter.next());
+      }
+    } finally {
+      iter.close();
+    }
+
+    List<Geometry> geometries = new ArrayList<Geometry>(regionList.size());
+    STRtree index = new STRtree();
+    for (int i = 0; i < regionList.size(); i++) {
+      Geometry geometry = (Geometry) regionList.get(i).getDefaultGeometry();
+      geometries.add(geometry);
+      if (geometry != null && !geometry.isEmpty()) {
+        index.insert(geometry.getEnvelopeInternal(), Integer.valueOf(i));
+      }
+    }
+    index.build();
+
+    int[] thresholds = ConnectivityIndex.thresholds(degrees);
+    int[][] connections = countConnections(network, geometries, index,
+        thresholds);
+
+    List<SimpleFeature> results = new ArrayList<SimpleFeature>(
+        regionList.size());
+    for (int i = 0; i < regionList.size(); i++) {
+      SimpleFeature region = regionList.get(i);
+      if (geometries.get(i) == null) {
+        LOGGER.error("Connectivity failed for region {}, it has no geometry",
+            region.getID());
+        continue;
+      }
+      try {
+        results.add(ConnectivityIndex.buildConnectivityFeature(region,
+            geometries.get(i), thresholds, connections[i]));
+      } catch (RuntimeException e) {
+        LOGGER.error("Connectivity failed for region " + region.getID(), e);
+      }
+    }
+    int failed = regionList.size() - results.size();
+    if (failed > 0) {
+      LOGGER.error("Connectivity failed for {} of {} regions", failed,
+          regionList.size());
+    }
+    LOGGER.debug("Completed connectivity for {} regions", results.size());
+    return results;
+  }
+
+  /**
+   * Counts the nodes in each region for each threshold, a region's geometry is
+   * only prepared once a node falls within its envelope
+   */
+  private static int[][] countConnections(CompactNetwork network,
+      List<Geometry> geometries, STRtree index, int[] thresholds) {
+    int[][] connections = new int[geometries.size()][thresholds.length];
+    int least = ConnectivityIndex.least(thresholds);
+    PreparedGeometry[] prepared = new PreparedGeometry[geometries.size()];
+    GeometryFactory factory = new GeometryFactory();
+    int joined = 0;
+    for (int node = 0; node < network.getNodeCount(); node++) {
+      int degree = network.getDegree(node);
+      if (degree < least) {
+        continue;
+      }
+      Coordinate coordinate = network.getNodeCoordinate(node);
+      List<Integer> candidates = query(index, new Envelope(coordinate));
+      if (candidates.isEmpty()) {
+        continue;
+      }
+      Point point = factory.createPoint(coordinate);
+      for (Integer region : candidates) {
+        if (prepared[region] == null) {
+          prepared[region] = PreparedGeometryFactory.prepare(geometries
+              .get(region));
+        }
+        if (prepared[region].intersects(point)) {
+          ConnectivityIndex.count(degree, thresholds, connections[region]);
+          joined++;
+        }
+      }
+    }
+    LOGGER.debug("Joined {} connections to regions", joined);
+    return connections;
+  }
+
+  /**
+   * The index only holds region positions, STRtree returns them as a raw list
+   */
+  @SuppressWarnings("unchecked")
+  private static List<Integer> query(STRtree index, Envelope search) {
+    return index.query(search);
+  }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import jsr166y.ForkJoinPool;
+import jsr166y.RecursiveAction;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.operation.distance.DistanceOp;
+
+/**
+ * A nearest edge index for snapping points onto a CompactNetwork. The index is
+ * built once per network and is read only afterwards, so it can be shared by
+ * any number of threads. Nearest edges are found by a best-first search of the
+ * tree - tree nodes and edges are visited in order of their distance from
+ * the point, so only the edges that could be nearest have their exact
+ * distance computed.
+ *
+ * The tree is a packed R-tree held in arrays. The edges are sorted into Sort
+ * Tile Recursive order, each run of NODE_CAPACITY edges is a leaf and each run
+ * of NODE_CAPACITY nodes has a parent, up to a single root. Only the sort is
+ * costly, so a network file keeps the edge order and the tree is rebuilt from
+ * it in linear time.
+ *
+ * @author amacaulay
+ */
+public final class EdgeSnapIndex {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(EdgeSnapIndex.class);
+  private static final int SNAP_THRESHOLD = 256;
+  private static final int NODE_CAPACITY = 10;
+  private final CompactNetwork network;
+  // the edges in leaf order
+  private final int[] order;
+  // the number of nodes in each level, level 0 being the edges themselves
+  private final int[] levelSizes;
+  // the first node of each level above the edges in bounds
+  private final int[] levelStarts;
+  // minX, minY, maxX, maxY of each node above the edges, level by level
+  private final double[] bounds;
+
+  /**
+   * Indexes all the edges of a network
+   *
+   * @param network
+   *          The network to snap to
+   */
+  EdgeSnapIndex(CompactNetwork network) {
+    this(network, sortTileRecursive(network));
+  }
+
+  /**
+   * Indexes the edges of a network in an order already found (eg read from a
+   * network file)
+   *
+   * @param network
+   *          The network to snap to
+   * @param order
+   *          The edges in leaf order, as getOrder
+   */
+  EdgeSnapIndex(CompactNetwork network, int[] order) {
+    this.network = network;
+    this.order = order;
+    int levels = 1;
+    for (int size = order.length; size > 1; size = parentCount(size)) {
+      levels++;
+    }
+    this.levelSizes = new int[levels];
+    this.levelStarts = new int[levels];
+    levelSizes[0] = order.length;
+    int nodes = 0;
+    for (int level = 1; level < levels; level++) {
+      levelStarts[level] = nodes;
+      levelSizes[level] = parentCount(levelSizes[level - 1]);
+      nodes += levelSizes[level];
+    }
+    this.bounds = new double[4 * nodes];
+    for (int level = 1; level < levels; level++) {
+      for (int node = 0; node < levelSizes[level]; node++) {
+        int at = 4 * (levelStarts[level] + node);
+        bounds[at] = Double.POSITIVE_INFINITY;
+        bounds[at + 1] = Double.POSITIVE_INFINITY;
+        bounds[at + 2] = Double.NEGATIVE_INFINITY;
+        bounds[at + 3] = Double.NEGATIVE_INFINITY;
+        int end = endChild(level, node);
+        for (int child = firstChild(node); child < end; child++) {
+          bounds[at] = Math.min(bounds[at], bound(level - 1, child, 0));
+          bounds[at + 1] = Math.min(bounds[at + 1], bound(level - 1, child, 1));
+          bounds[at + 2] = Math.max(bounds[at + 2], bound(level - 1, child, 2));
+          bounds[at + 3] = Math.max(bounds[at + 3], bound(level - 1, child, 3));
+        }
+      }
+    }
+  }
+
+  /**
+   * Sorts the edges by the x of their centres into vertical slices of about
+   * the square root of the number of leaves, then each slice by y
+   */
+  private static int[] sortTileRecursive(final CompactNetwork network) {
+    int edgeCount = network.getEdgeCount();
+    Integer[] edges = new Integer[edgeCount];
+    for (int e = 0; e < edgeCount; e++) {
+      edges[e] = e;
+    }
+    Arrays.sort(edges, new CentreComparator(network, 0));
+    int leaves = parentCount(edgeCount);
+    int sliceSize = NODE_CAPACITY * (int) Math.ceil(Math.sqrt(leaves));
+    Comparator<Integer> byY = new CentreComparator(network, 1);
+    for (int start = 0; start < edgeCount; start += sliceSize) {
+      Arrays.sort(edges, start, Math.min(edgeCount, start + sliceSize), byY);
+    }
+    int[] order = new int[edgeCount];
+    for (int i = 0; i < edgeCount; i++) {
+      order[i] = edges[i];
+    }
+    return order;
+  }
+
+  private static int parentCount(int size) {
+    return (size + NODE_CAPACITY - 1) / NODE_CAPACITY;
+  }
+
+  private static int firstChild(int node) {
+    return node * NODE_CAPACITY;
+  }
+
+  private int endChild(int level, int node) {
+    return Math.min(levelSizes[level - 1], (node + 1) * NODE_CAPACITY);
+  }
+
+  /**
+   * @return One of the minX, minY, maxX, maxY (0 to 3) of a tree node
+   */
+  private double bound(int level, int node, int ordinate) {
+    if (level == 0) {
+      return network.getEdgeBound(order[node], ordinate);
+    }
+    return bounds[4 * (levelStarts[level] + node) + ordinate];
+  }
+
+  /**
+   * @return The edges in leaf order, to be kept (eg in a network file) and
+   *         given back to rebuild the index
+   */
+  int[] getOrder() {
+    return order;
+  }
+
+  /**
+   * Snaps a coordinate to the nearest location on the network
+   *
+   * @param pt
+   *          The coordinate to snap
+   * @param maxDistance
+   *          The maximum distance to snap
+   * @return The nearest network location, or null if no edge is within
+   *         maxDistance
+   */
+  public NetworkLocation nearest(Coordinate pt, double maxDistance) {
+    List<NetworkLocation> nearest = nearest(pt, 1, maxDistance);
+    return nearest.isEmpty() ? null : nearest.get(0);
+  }
+
+  /**
+   * Finds the k nearest edges to a coordinate
+   *
+   * @param pt
+   *          The coordinate to snap
+   * @param k
+   *          The maximum number of edges to find
+   * @param maxDistance
+   *          The maximum distance to snap
+   * @return The nearest location on each of the k nearest edges, nearest
+   *         first
+   */
+  public List<NetworkLocation> nearest(Coordinate pt, int k, double maxDistance) {
+    List<NetworkLocation> nearest = new ArrayList<NetworkLocation>(k);
+    if (order.length == 0) {
+      return nearest;
+    }
+    PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+    queue.add(new Candidate(levelSizes.length - 1, 0, 0.0, null));
+    while (!queue.isEmpty() && nearest.size() < k) {
+      Candidate candidate = queue.poll();
+      if (candidate.distance > maxDistance) {
+        break;
+      }
+      if (candidate.location != null) {
+        nearest.add(candidate.location);
+      } else if (candidate.level > 0) {
+        int level = candidate.level;
+        for (int child = firstChild(candidate.node); child < endChild(level,
+            candidate.node); child++) {
+          double distance = distance(level - 1, child, pt);
+          if (distance <= maxDistance) {
+            queue.add(new Candidate(level - 1, child, distance, null));
+          }
+        }
+      } else {
+        // An edge whose envelope is next nearest, queue it again with its
+        // exact distance
+        NetworkLocation location = project(network, order[candidate.node], pt);
+        queue.add(new Candidate(0, candidate.node, location.getSnapDistance(),
+            location));
+      }
+    }
+    return nearest;
+  }
+
+  /**
+   * Finds where an area (eg a parcel or park) meets the network: the nearest
+   * location of each edge within a tolerance of the area (edges crossing or
+   * inside the area are at distance 0)
+   *
+   * @param area
+   *          The area
+   * @param tolerance
+   *          The furthest an edge can be from the area
+   * @return A location on each edge next to the area, in no particular order
+   */
+  public List<NetworkLocation> entries(Geometry area, double tolerance) {
+    Envelope search = new Envelope(area.getEnvelopeInternal());
+    search.expandBy(tolerance);
+    List<NetworkLocation> entries = new ArrayList<NetworkLocation>();
+    for (Integer edge : query(search)) {
+      DistanceOp distance = new DistanceOp(network.getEdgeGeometry(edge),
+          area, tolerance);
+      if (distance.distance() <= tolerance) {
+        NetworkLocation entry = project(network, edge,
+            distance.nearestPoints()[0]);
+        entries.add(new NetworkLocation(edge, entry.getOffset(), distance
+            .distance()));
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Finds the edges whose envelopes intersect a search envelope
+   *
+   * @param search
+   *          The search envelope
+   * @return The edge ids
+   */
+  public List<Integer> query(Envelope search) {
+    List<Integer> edges = new ArrayList<Integer>();
+    if (order.length > 0) {
+      query(levelSizes.length - 1, 0, search, edges);
+    }
+    return edges;
+  }
+
+  private void query(int level, int node, Envelope search,
+      List<Integer> edges) {
+    if (bound(level, node, 0) > search.getMaxX()
+        || bound(level, node, 2) < search.getMinX()
+        || bound(level, node, 1) > search.getMaxY()
+        || bound(level, node, 3) < search.getMinY()) {
+      return;
+    }
+    if (level == 0) {
+      edges.add(order[node]);
+      return;
+    }
+    for (int child = firstChild(node); child < endChild(level, node); child++) {
+      query(level - 1, child, search, edges);
+    }
+  }
+
+  /**
+   * Snaps many coordinates to the network in parallel
+   *
+   * @param points
+   *          The coordinates to snap
+   * @param maxDistance
+   *          The maximum distance to snap
+   * @return The nearest network location for each coordinate (in the same
+   *         order), null where no edge is within maxDistance
+   */
+  public NetworkLocation[] snapAll(List<Coordinate> points, double maxDistance) {
+    NetworkLocation[] locations = new NetworkLocation[points.size()];
+    ForkJoinPool fjPool = new ForkJoinPool(Runtime.getRuntime()
+        .availableProcessors());
+    try {
+      fjPool.invoke(new Snapper(points, locations, maxDistance, 0, points
+          .size()));
+    } finally {
+      fjPool.shutdown();
+    }
+    return locations;
+  }
+
+  /**
+   * Snaps the features of a collection to the network in parallel, features
+   * that are not points are snapped from their centroid
+   *
+   * @param features
+   *          The features to snap
+   * @param maxDistance
+   *          The maximum distance to snap
+   * @return The nearest network location of each feature by feature id, in
+   *         iteration order, null where no edge is within maxDistance
+   */
+  public Map<String, NetworkLocation> snapAll(SimpleFeatureCollection features,
+      double maxDistance) {
+    List<String> ids = new ArrayList<String>();
+    List<Coordinate> points = new ArrayList<Coordinate>();
+    SimpleFeatureIterator iter = features.features();
+    try {
+      while (iter.hasNext()) {
+        SimpleFeature feature = iter.next();
+        ids.add(feature.getID());
+        points.add(((Geometry) feature.getDefaultGeometry()).getCentroid()
+            .getCoordinate());
+      }
+    } finally {
+      iter.close();
+    }
+    NetworkLocation[] locations = snapAll(points, maxDistance);
+    Map<String, NetworkLocation> snapped = new LinkedHashMap<String, NetworkLocation>();
+    for (int i = 0; i < locations.length; i++) {
+      snapped.put(ids.get(i), locations[i]);
+    }
+    LOGGER.debug("Snapped {} features", locations.length);
+    return snapped;
+  }
+
+  private double distance(int level, int node, Coordinate pt) {
+    double dx = Math.max(0.0, Math.max(bound(level, node, 0) - pt.x, pt.x
+        - bound(level, node, 2)));
+    double dy = Math.max(0.0, Math.max(bound(level, node, 1) - pt.y, pt.y
+        - bound(level, node, 3)));
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * Finds the nearest point on an edge, and its distance along the edge
+   */
+  static NetworkLocation project(CompactNetwork network, int edge,
+      Coordinate pt) {
+    double minDistance = Double.POSITIVE_INFINITY;
+    double offset = 0.0;
+    double length = 0.0;
+    for (int i = network.getCoordinateStart(edge); i < network
+        .getCoordinateEnd(edge) - 1; i++) {
+      double x0 = network.getX(i);
+      double y0 = network.getY(i);
+      double dx = network.getX(i + 1) - x0;
+      double dy = network.getY(i + 1) - y0;
+      double segmentLength = Math.sqrt(dx * dx + dy * dy);
+      double fraction = 0.0;
+      if (segmentLength > 0.0) {
+        fraction = ((pt.x - x0) * dx + (pt.y - y0) * dy)
+            / (segmentLength * segmentLength);
+        fraction = Math.max(0.0, Math.min(1.0, fraction));
+      }
+      double px = x0 + fraction * dx - pt.x;
+      double py = y0 + fraction * dy - pt.y;
+      double distance = Math.sqrt(px * px + py * py);
+      if (distance < minDistance) {
+        minDistance = distance;
+        offset = length + fraction * segmentLength;
+      }
+      length += segmentLength;
+    }
+    return new NetworkLocation(edge, Math.min(offset, length), minDistance);
+  }
+
+  private static final class CentreComparator implements Comparator<Integer> {
+    private final CompactNetwork network;
+    private final int ordinate;
+
+    CentreComparator(CompactNetwork network, int ordinate) {
+      this.network = network;
+      this.ordinate = ordinate;
+    }
+
+    public int compare(Integer a, Integer b) {
+      return Double.compare(centre(a), centre(b));
+    }
+
+    private double centre(int edge) {
+      return network.getEdgeBound(edge, ordinate)
+          + network.getEdgeBound(edge, ordinate + 2);
+    }
+  }
+
+  private static final class Candidate implements Comparable<Candidate> {
+    // the tree level and node, level 0 nodes are edges
+    private final int level;
+    private final int node;
+    private final double distance;
+    private final NetworkLocation location;
+
+    Candidate(int level, int node, double distance, NetworkLocation location) {
+      this.level = level;
+      this.node = node;
+      this.distance = distance;
+      this.location = location;
+    }
+
+    public int compareTo(Candidate other) {
+      int compare = Double.compare(distance, other.distance);
+      if (compare == 0) {
+        // at equal distances exact edge locations come first
+        if (location != null && other.location == null) {
+          return -1;
+        }
+        if (location == null && other.location != null) {
+          return 1;
+        }
+      }
+      return compare;
+    }
+  }
+
+  private class Snapper extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final transient List<Coordinate> points;
+    private final transient NetworkLocation[] locations;
+    private final double maxDistance;
+    private final int start;
+    private final int end;
+
+    Snapper(List<Coordinate> points, NetworkLocation[] locations,
+        double maxDistance, int start, int end) {
+      this.points = points;
+      this.locations = locations;
+      this.maxDistance = maxDistance;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= SNAP_THRESHOLD) {
+        for (int i = start; i < end; i++) {
+          locations[i] = nearest(points.get(i), maxDistance);
+        }
+      } else {
+        int middle = (start + end) >>> 1;
+        invokeAll(new Snapper(points, locations, maxDistance, start, middle),
+            new Snapper(points, locations, maxDistance, middle, end));
+      }
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+
+/**
+ * Cuts parts out of lines held as packed x,y coordinates with the cumulative
+ * length (measure) at each coordinate. The segments containing the cut points
+ * are found by binary search over the measures, and only the coordinates of
+ * the part are copied, into a single packed array for the new line.
+ *
+ * @author amacaulay
+ */
+final class LineSubstring {
+
+  private LineSubstring() {
+  }
+
+  /**
+   * Packs the coordinates of a line
+   *
+   * @return x,y pairs
+   */
+  static double[] pack(CoordinateSequence seq) {
+    double[] packed = new double[2 * seq.size()];
+    for (int c = 0; c < seq.size(); c++) {
+      packed[2 * c] = seq.getX(c);
+      packed[2 * c + 1] = seq.getY(c);
+    }
+    return packed;
+  }
+
+  /**
+   * Fills in the cumulative length at each coordinate of a line
+   *
+   * @param coordinates
+   *          Packed x,y pairs
+   * @param first
+   *          The index of the first coordinate of the line
+   * @param end
+   *          The index after the last coordinate of the line
+   * @param measures
+   *          Receives the length along the line at each coordinate, indexed
+   *          the same as the coordinates
+   * @return The length of the line
+   */
+  static double measure(double[] coordinates, int first, int end,
+      double[] measures) {
+    double length = 0.0;
+    measures[first] = 0.0;
+    for (int c = first + 1; c < end; c++) {
+      double dx = coordinates[2 * c] - coordinates[2 * c - 2];
+      double dy = coordinates[2 * c + 1] - coordinates[2 * c - 1];
+      length += Math.sqrt(dx * dx + dy * dy);
+      measures[c] = length;
+    }
+    return length;
+  }
+
+  /**
+   * Extracts the part of a line between two lengths along it
+   *
+   * @param factory
+   *          Creates the new line
+   * @param coordinates
+   *          Packed x,y pairs
+   * @param measures
+   *          The length along the line at each coordinate
+   * @param first
+   *          The index of the first coordinate of the line
+   * @param end
+   *          The index after the last coordinate of the line
+   * @param from
+   *          The length along the line to start at
+   * @param to
+   *          The length along the line to end at
+   * @return The part of the line
+   */
+  static LineString extract(GeometryFactory factory, double[] coordinates,
+      double[] measures, int first, int end, double from, double to) {
+    int last = end - 1;
+    double start = Math.max(0.0, Math.min(from, measures[last]));
+    double stop = Math.max(start, Math.min(to, measures[last]));
+    int startSegment = segmentAt(measures, first, last, start);
+    int stopSegment = segmentAt(measures, first, last, stop);
+
+    double[] packed = new double[2 * (stopSegment - startSegment + 2)];
+    int size = interpolate(coordinates, measures, last, startSegment, start,
+        packed, 0);
+    for (int c = startSegment + 1; c <= stopSegment; c++) {
+      size = append(packed, size, coordinates[2 * c], coordinates[2 * c + 1]);
+    }
+    size = interpolate(coordinates, measures, last, stopSegment, stop, packed,
+        size);
+    if (size > 2 && packed[size - 2] == packed[size - 4]
+        && packed[size - 1] == packed[size - 3]) {
+      size -= 2;
+    }
+    if (size == 2) {
+      // a zero length part, still a valid line
+      packed[2] = packed[0];
+      packed[3] = packed[1];
+      size = 4;
+    }
+    if (size < packed.length) {
+      packed = Arrays.copyOf(packed, size);
+    }
+    return factory.createLineString(new PackedCoordinateSequence.Double(
+        packed, 2));
+  }
+
+  /**
+   * @return The index of the coordinate starting the segment containing the
+   *         measure, the last segment for the end of the line
+   */
+  private static int segmentAt(double[] measures, int first, int last,
+      double measure) {
+    int low = first;
+    int high = Math.max(first, last - 1);
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (measures[middle] <= measure) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Writes the point at a measure on a segment to packed[size]
+   *
+   * @return size + 2
+   */
+  private static int interpolate(double[] coordinates, double[] measures,
+      int last, int segment, double measure, double[] packed, int size) {
+    double x = coordinates[2 * segment];
+    double y = coordinates[2 * segment + 1];
+    if (segment < last) {
+      double segmentLength = measures[segment + 1] - measures[segment];
+      if (segmentLength > 0.0) {
+        double fraction = (measure - measures[segment]) / segmentLength;
+        x += fraction * (coordinates[2 * segment + 2] - x);
+        y += fraction * (coordinates[2 * segment + 3] - y);
+      }
+    }
+    packed[size] = x;
+    packed[size + 1] = y;
+    return size + 2;
+  }
+
+  /**
+   * Appends a coordinate unless it repeats the previous one
+   */
+  private static int append(double[] packed, int size, double x, double y) {
+    if (size >= 2 && packed[size - 2] == x && packed[size - 1] == y) {
+      return size;
+    }
+    packed[size] = x;
+    packed[size + 1] = y;
+    return size + 2;
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.mccaughey.utilities.CollectionFeatureSink;
+import org.mccaughey.utilities.FeatureSink;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * Finds the nearest destination (eg school, station) by network distance from
+ * every part of a CompactNetwork, with one traversal seeded from all the
+ * destinations at once rather than one service area per destination.
+ * 
+ * Each node ends up with the distance to, and index of, its nearest
+ * destination. Along an edge the nearest destination is whichever is nearest
+ * through either end (or directly, for destinations on the edge), so the
+ * edge is cut where that changes.
+ * 
+ * @author amacaulay
+ */
+public final class NearestDestination {
+
+  static final Logger LOGGER = LoggerFactory
+      .getLogger(NearestDestination.class);
+  private static final int NONE = -1;
+  private final CompactNetwork network;
+  private final String[] destinationIds;
+  private final NetworkLocation[] locations;
+  private final double maxDistance;
+  private final double[] nodeDistance;
+  private final int[] nodeDestination;
+  private final Map<Integer, List<Integer>> destinationsOnEdge;
+
+  private NearestDestination(CompactNetwork network, String[] destinationIds,
+      NetworkLocation[] locations, double maxDistance) {
+    this.network = network;
+    this.destinationIds = destinationIds;
+    this.locations = locations;
+    this.maxDistance = maxDistance;
+    this.nodeDistance = new double[network.getNodeCount()];
+    this.nodeDestination = new int[network.getNodeCount()];
+    this.destinationsOnEdge = new HashMap<Integer, List<Integer>>();
+  }
+
+  /**
+   * Labels a network with the nearest of a set of destinations
+   * 
+   * @param network
+   *          The network
+   * @param destinations
+   *          The destinations, snapped to the network from their centroids
+   * @param snapDistance
+   *          The furthest a destination can be from the network
+   * @param maxDistance
+   *          The furthest network distance to look for a destination (may be
+   *          infinite), parts of the network further than this from every
+   *          destination are left unlabelled
+   * @return The labelled network
+   */
+  public static NearestDestination find(CompactNetwork network,
+      SimpleFeatureCollection destinations, double snapDistance,
+      double maxDistance) {
+    Map<String, NetworkLocation> snapped = network.getSnapIndex().snapAll(
+        destinations, snapDistance);
+    List<String> ids = new ArrayList<String>();
+    List<NetworkLocation> snappedLocations = new ArrayList<NetworkLocation>();
+    for (Map.Entry<String, NetworkLocation> entry : snapped.entrySet()) {
+      if (entry.getValue() == null) {
+        LOGGER.error("Failed to snap destination {} to network",
+            entry.getKey());
+      } else {
+        ids.add(entry.getKey());
+        snappedLocations.add(entry.getValue());
+      }
+    }
+    return find(network, ids.toArray(new String[ids.size()]),
+        snappedLocations.toArray(new NetworkLocation[snappedLocations.size()]),
+        maxDistance);
+  }
+
+  /**
+   * Labels a network with the nearest of a set of snapped destinations
+   */
+  static NearestDestination find(CompactNetwork network,
+      String[] destinationIds, NetworkLocation[] locations, double maxDistance) {
+    NearestDestination nearest = new NearestDestination(network,
+        destinationIds, locations, maxDistance);
+    nearest.traverse();
+    return nearest;
+  }
+
+  /**
+   * Seeds both ends of every destination's edge and settles all nodes within
+   * the maximum distance in order of distance, a node takes the destination
+   * of the node it was reached from
+   */
+  private void traverse() {
+    Arrays.fill(nodeDistance, Double.POSITIVE_INFINITY);
+    Arrays.fill(nodeDestination, NONE);
+    NodeHeap heap = new NodeHeap(network.getNodeCount());
+    for (int d = 0; d < locations.length; d++) {
+      int edge = locations[d].getEdge();
+      List<Integer> onEdge = destinationsOnEdge.get(edge);
+      if (onEdge == null) {
+        onEdge = new ArrayList<Integer>(1);
+        destinationsOnEdge.put(edge, onEdge);
+      }
+      onEdge.add(d);
+      seed(heap, network.getNodeA(edge), locations[d].getOffset(), d);
+      seed(heap, network.getNodeB(edge), network.getEdgeLength(edge)
+          - locations[d].getOffset(), d);
+    }
+    while (!heap.isEmpty()) {
+      int node = heap.poll();
+      for (int i = network.getAdjacencyStart(node); i < network
+          .getAdjacencyEnd(node); i++) {
+        int edge = network.getAdjacentEdge(i);
+        seed(heap, network.getOtherNode(edge, node), nodeDistance[node]
+            + network.getEdgeLength(edge), nodeDestination[node]);
+      }
+    }
+  }
+
+  private void seed(NodeHeap heap, int node, double distance, int destination) {
+    if (distance <= maxDistance && distance < nodeDistance[node]) {
+      nodeDistance[node] = distance;
+      nodeDestination[node] = destination;
+      heap.insertOrDecrease(node, distance);
+    }
+  }
+
+  /**
+   * @return The network that was labelled
+   */
+  public CompactNetwork getNetwork() {
+    return network;
+  }
+
+  /**
+   * @return The network distance from the node to its nearest destination,
+   *         infinite if none is within the maximum distance
+   */
+  public double getNodeDistance(int node) {
+    return nodeDistance[node];
+  }
+
+  /**
+   * @return The feature id of the node's nearest destination, null if none is
+   *         within the maximum distance
+   */
+  public String getNodeDestination(int node) {
+    int destination = nodeDestination[node];
+    return destination == NONE ? null : destinationIds[destination];
+  }
+
+  /**
+   * Works out the parts of an edge nearest to each destination. Every way to a
+   * destination is a position on a line through the edge: through node A at
+   * -distanceA, through node B at length + distanceB, or a destination on the
+   * edge at its offset. So the nearest destination changes half way between
+   * consecutive positions.
+   * 
+   * @param edge
+   *          The edge
+   * @return triples of (start, end, destination index) along the edge, in
+   *         order, with neighbouring parts of the same destination merged
+   */
+  double[] getPieces(int edge) {
+    double length = network.getEdgeLength(edge);
+    List<Integer> onEdge = destinationsOnEdge.get(edge);
+    int candidates = 2 + (onEdge == null ? 0 : onEdge.size());
+    double[] positions = new double[candidates];
+    int[] destinations = new int[candidates];
+    int count = 0;
+    int nodeA = network.getNodeA(edge);
+    int nodeB = network.getNodeB(edge);
+    if (nodeDestination[nodeA] != NONE) {
+      positions[count] = -nodeDistance[nodeA];
+      destinations[count++] = nodeDestination[nodeA];
+    }
+    if (nodeDestination[nodeB] != NONE) {
+      positions[count] = length + nodeDistance[nodeB];
+      destinations[count++] = nodeDestination[nodeB];
+    }
+    if (onEdge != null) {
+      for (int d : onEdge) {
+        positions[count] = locations[d].getOffset();
+        destinations[count++] = d;
+      }
+    }
+    // insertion sort on position, there are only ever a few
+    for (int j = 1; j < count; j++) {
+      double position = positions[j];
+      int destination = destinations[j];
+      int k = j - 1;
+      while (k >= 0 && positions[k] > position) {
+        positions[k + 1] = positions[k];
+        destinations[k + 1] = destinations[k];
+        k--;
+      }
+      positions[k + 1] = position;
+      destinations[k + 1] = destination;
+    }
+
+    double[] pieces = new double[3 * count];
+    int size = 0;
+    for (int j = 0; j < count; j++) {
+      double start = j == 0 ? 0.0 : (positions[j - 1] + positions[j]) / 2.0;
+      double end = j == count - 1 ? length
+          : (positions[j] + positions[j + 1]) / 2.0;
+      start = Math.max(Math.max(0.0, start), positions[j] - maxDistance);
+      end = Math.min(Math.min(length, end), positions[j] + maxDistance);
+      if (end < start || (end == start && length > 0.0)) {
+        continue;
+      }
+      if (size > 0 && pieces[size - 1] == destinations[j]
+          && pieces[size - 2] >= start) {
+        pieces[size - 2] = end;
+      } else {
+        pieces[size++] = start;
+        pieces[size++] = end;
+        pieces[size++] = destinations[j];
+      }
+    }
+    return Arrays.copyOf(pieces, size);
+  }
+
+  /**
+   * @return The least network distance from a part of an edge to a
+   *         destination
+   */
+  private double pieceDistance(int edge, double start, double end,
+      int destination) {
+    double distance = Double.POSITIVE_INFINITY;
+    int nodeA = network.getNodeA(edge);
+    int nodeB = network.getNodeB(edge);
+    if (nodeDestination[nodeA] == destination) {
+      distance = Math.min(distance, nodeDistance[nodeA] + start);
+    }
+    if (nodeDestination[nodeB] == destination) {
+      distance = Math.min(distance, nodeDistance[nodeB]
+          + network.getEdgeLength(edge) - end);
+    }
+    if (locations[destination].getEdge() == edge) {
+      double offset = locations[destination].getOffset();
+      distance = Math.min(distance,
+          Math.max(0.0, Math.max(start - offset, offset - end)));
+    }
+    return distance;
+  }
+
+  /**
+   * Writes a line feature for each part of the network with a nearest
+   * destination, with the destination's feature id ("Destination") and the
+   * least network distance to it ("Distance")
+   * 
+   * @param sink
+   *          Receives the labelled lines
+   * @return The number of features written
+   * @throws IOException
+   *           If the sink fails to write a feature
+   */
+  public int writeFeatures(FeatureSink sink) throws IOException {
+    SimpleFeatureType edgeType = createEdgeFeatureType();
+    int written = 0;
+    for (int edge = 0; edge < network.getEdgeCount(); edge++) {
+      double[] pieces = getPieces(edge);
+      for (int j = 0; j < pieces.length; j += 3) {
+        int destination = (int) pieces[j + 2];
+        SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(edgeType);
+        sfb.add(network.getEdgeGeometry(edge, pieces[j], pieces[j + 1]));
+        sfb.add(destinationIds[destination]);
+        sfb.add(pieceDistance(edge, pieces[j], pieces[j + 1], destination));
+        sink.write(sfb.buildFeature(null));
+        written++;
+      }
+    }
+    LOGGER.debug("Labelled {} lines with their nearest destination", written);
+    return written;
+  }
+
+  /**
+   * @return The labelled lines as a feature collection (see writeFeatures)
+   */
+  public SimpleFeatureCollection getFeatures() {
+    DefaultFeatureCollection features = new DefaultFeatureCollection();
+    try {
+      writeFeatures(new CollectionFeatureSink(features));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return features;
+  }
+
+  private SimpleFeatureType createEdgeFeatureType() {
+    SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+    builder.setName("NearestDestination");
+    builder.setCRS(network.getCoordinateReferenceSystem());
+    builder.add("Edge", LineString.class);
+    builder.add("Destination", String.class);
+    builder.add("Distance", Double.class);
+    return builder.buildFeatureType();
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.File;
+import java.io.IOException;
+
+import oms3.annotations.Description;
+import oms3.annotations.Execute;
+import oms3.annotations.In;
+import oms3.annotations.Name;
+import oms3.annotations.Out;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An OMS Wrapper for labelling a network with its nearest destinations
+ * 
+ * @author amacaulay
+ */
+@Name("nearestdest")
+@Description("Labels every part of a network with its nearest destination by network distance")
+public class NearestDestinationOMS {
+
+  static final Logger LOGGER = LoggerFactory
+      .getLogger(NearestDestinationOMS.class);
+  /**
+   * The road network to label
+   */
+  @In
+  @Name("Road Network")
+  @Description("The network data set to label")
+  public SimpleFeatureSource network;
+  /**
+   * A prepared network file, used instead of the road network
+   */
+  @In
+  @Name("Network file")
+  @Description("A prepared network file (see netexport) to label instead of the road network")
+  public File networkFile;
+  /**
+   * The destinations
+   */
+  @In
+  @Name("Destinations")
+  @Description("The destinations (eg schools, stations) to find the nearest of")
+  public SimpleFeatureSource destinations;
+  /**
+   * The furthest network distance to look for a destination (optional)
+   */
+  @In
+  @Name("Maximum walk distance")
+  @Description("Parts of the network further than this from every destination are left out")
+  public Double distance;
+  /**
+   * The furthest a destination can be from the network
+   */
+  @In
+  @Name("Snap distance")
+  @Description("Destinations further than this from the network are left out")
+  public Double snapDistance = 100.0;
+
+  /**
+   * The labelled network
+   */
+  @Out
+  @Name("Labelled network")
+  public SimpleFeatureSource labelledNetwork;
+
+  /**
+   * Prepares the network, labels it from all the destinations at once and
+   * outputs the labelled lines
+   */
+  @Execute
+  public void run() {
+
+    validateInputs();
+
+    try {
+      CompactNetwork compactNetwork;
+      if (networkFile != null) {
+        compactNetwork = NetworkFile.read(networkFile);
+      } else {
+        LOGGER.info("Preparing network...");
+        compactNetwork = CompactNetwork.build(network).contract();
+      }
+      LOGGER.info("Finding nearest destinations...");
+      NearestDestination nearest = NearestDestination.find(compactNetwork,
+          destinations.getFeatures(), snapDistance,
+          distance == null ? Double.POSITIVE_INFINITY : distance);
+      labelledNetwork = DataUtilities.source(nearest.getFeatures());
+      LOGGER.info("Completed nearest destinations");
+    } catch (IOException e) {
+      LOGGER.error(e.getMessage());
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void validateInputs() {
+
+    if (network == null && networkFile == null) {
+      throw new IllegalArgumentException(
+          "Nearest destination error: A road network was not provided");
+    }
+
+    if (destinations == null) {
+      throw new IllegalArgumentException(
+          "Nearest destination error: A set of destinations was not provided");
+    }
+
+    if (snapDistance == null) {
+      throw new IllegalArgumentException(
+          "Nearest destination error: A snap distance must be provided");
+    }
+  }
+}
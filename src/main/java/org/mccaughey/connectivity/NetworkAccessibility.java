@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jsr166y.ForkJoinPool;
+import jsr166y.RecursiveAction;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Counts the destinations within a network distance of each origin, and sums
+ * their (optionally weighted) gravity, without building service area polygons.
+ * Destinations are snapped to the network once and held per edge, each origin
+ * is then a bounded traversal of the shared network whose reached edges are
+ * checked for destinations.
+ * 
+ * Gravity is the sum over reached destinations of weight * exp(-decay *
+ * distance), with no decay it is the total weight.
+ * 
+ * @author amacaulay
+ */
+public final class NetworkAccessibility {
+
+  static final Logger LOGGER = LoggerFactory
+      .getLogger(NetworkAccessibility.class);
+  private static final int ORIGINS_PER_TASK = 32;
+  private final CompactNetwork network;
+  private final double snapDistance;
+  // destinations grouped by edge, edge e's are destinationStart[e] to
+  // destinationStart[e + 1] - 1
+  private final int[] destinationStart;
+  private final double[] destinationOffset;
+  private final double[] destinationWeight;
+  private double decay;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Snaps the destinations to the network
+   * 
+   * @param network
+   *          The network
+   * @param destinations
+   *          The destinations, snapped from their centroids
+   * @param snapDistance
+   *          The furthest an origin or destination can be from the network
+   * @param weightAttribute
+   *          A numeric attribute to weight destinations by, or null to count
+   *          each destination once
+   */
+  public NetworkAccessibility(CompactNetwork network,
+      SimpleFeatureCollection destinations, double snapDistance,
+      String weightAttribute) {
+    this.network = network;
+    this.snapDistance = snapDistance;
+
+    List<Coordinate> points = new ArrayList<Coordinate>();
+    List<Double> weights = new ArrayList<Double>();
+    SimpleFeatureIterator iter = destinations.features();
+    try {
+      while (iter.hasNext()) {
+        SimpleFeature destination = iter.next();
+        points.add(((Geometry) destination.getDefaultGeometry())
+            .getCentroid().getCoordinate());
+        weights.add(weight(destination, weightAttribute));
+      }
+    } finally {
+      iter.close();
+    }
+    NetworkLocation[] locations = network.getSnapIndex().snapAll(points,
+        snapDistance);
+
+    int edgeCount = network.getEdgeCount();
+    destinationStart = new int[edgeCount + 1];
+    int snapped = 0;
+    for (NetworkLocation location : locations) {
+      if (location != null) {
+        destinationStart[location.getEdge() + 1]++;
+        snapped++;
+      }
+    }
+    for (int e = 0; e < edgeCount; e++) {
+      destinationStart[e + 1] += destinationStart[e];
+    }
+    destinationOffset = new double[snapped];
+    destinationWeight = new double[snapped];
+    int[] fill = new int[edgeCount];
+    for (int i = 0; i < locations.length; i++) {
+      if (locations[i] != null) {
+        int edge = locations[i].getEdge();
+        int slot = destinationStart[edge] + fill[edge]++;
+        destinationOffset[slot] = locations[i].getOffset();
+        destinationWeight[slot] = weights.get(i);
+      }
+    }
+    if (snapped < locations.length) {
+      LOGGER.error("Failed to snap {} of {} destinations to network",
+          locations.length - snapped, locations.length);
+    }
+  }
+
+  private static double weight(SimpleFeature destination,
+      String weightAttribute) {
+    if (weightAttribute == null) {
+      return 1.0;
+    }
+    Object value = destination.getAttribute(weightAttribute);
+    return value instanceof Number ? ((Number) value).doubleValue() : 0.0;
+  }
+
+  /**
+   * @param decay
+   *          The rate (per unit of network distance) at which a destination's
+   *          gravity falls off, 0 (the default) for no fall off
+   */
+  public void setDecay(double decay) {
+    this.decay = decay;
+  }
+
+  /**
+   * @param parallelism
+   *          The number of threads to score origins with (by default the
+   *          number of processors)
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Measures accessibility from a location on the network
+   * 
+   * @param origin
+   *          The origin
+   * @param distance
+   *          The network distance to look for destinations within
+   * @return The number of destinations within distance and their gravity
+   */
+  double[] measure(NetworkLocation origin, double distance) {
+    CompactServiceArea serviceArea = CompactNetworkBuffer.findServiceArea(
+        network, origin, distance);
+    double count = 0;
+    double gravity = 0.0;
+    for (int i = 0; i < serviceArea.size(); i++) {
+      int edge = serviceArea.getEdge(i);
+      if (destinationStart[edge] == destinationStart[edge + 1]) {
+        continue;
+      }
+      double length = network.getEdgeLength(edge);
+      double distanceA = serviceArea.getDistanceA(i);
+      double distanceB = serviceArea.getDistanceB(i);
+      for (int d = destinationStart[edge]; d < destinationStart[edge + 1]; d++) {
+        double offset = destinationOffset[d];
+        double reach = Math.min(distanceA + offset, distanceB + length
+            - offset);
+        if (edge == origin.getEdge()) {
+          reach = Math.min(reach, Math.abs(offset - origin.getOffset()));
+        }
+        if (reach <= distance) {
+          count++;
+          gravity += destinationWeight[d] * Math.exp(-decay * reach);
+        }
+      }
+    }
+    return new double[] { count, gravity };
+  }
+
+  /**
+   * Scores a set of origins in parallel
+   * 
+   * @param origins
+   *          The origins, snapped from their centroids
+   * @param distance
+   *          The network distance to look for destinations within
+   * @return The origin features with "Destinations" (the count) and
+   *         "Accessibility" (the gravity) attributes added, in the same order,
+   *         null for origins that could not be snapped
+   */
+  public List<SimpleFeature> score(SimpleFeatureCollection origins,
+      double distance) {
+    List<SimpleFeature> originList = new ArrayList<SimpleFeature>();
+    SimpleFeatureIterator iter = origins.features();
+    try {
+      while (iter.hasNext()) {
+        originList.add(iter.next());
+      }
+    } finally {
+      iter.close();
+    }
+    SimpleFeature[] results = new SimpleFeature[originList.size()];
+    if (!originList.isEmpty()) {
+      SimpleFeatureType scoreType = createScoreFeatureType(originList.get(0)
+          .getFeatureType());
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      try {
+        pool.invoke(new ScoreTask(originList, results, scoreType, distance, 0,
+            results.length));
+      } finally {
+        pool.shutdown();
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  private SimpleFeature score(SimpleFeature origin,
+      SimpleFeatureType scoreType, double distance) {
+    Coordinate pt = ((Geometry) origin.getDefaultGeometry()).getCentroid()
+        .getCoordinate();
+    NetworkLocation location = network.locate(pt, snapDistance);
+    if (location == null) {
+      LOGGER.error("Failed to snap origin {} to network", origin.getID());
+      return null;
+    }
+    double[] measures = measure(location, distance);
+    SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(scoreType);
+    sfb.addAll(origin.getAttributes());
+    sfb.add((int) measures[0]);
+    sfb.add(measures[1]);
+    return sfb.buildFeature(origin.getID());
+  }
+
+  private static SimpleFeatureType createScoreFeatureType(
+      SimpleFeatureType originType) {
+    SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
+    stb.init(originType);
+    stb.setName("accessibilityFeatureType");
+    stb.add("Destinations", Integer.class);
+    stb.add("Accessibility", Double.class);
+    return stb.buildFeatureType();
+  }
+
+  private final class ScoreTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final transient List<SimpleFeature> origins;
+    private final transient SimpleFeature[] results;
+    private final transient SimpleFeatureType scoreType;
+    private final double distance;
+    private final int start;
+    private final int end;
+
+    ScoreTask(List<SimpleFeature> origins, SimpleFeature[] results,
+        SimpleFeatureType scoreType, double distance, int start, int end) {
+      this.origins = origins;
+      this.results = results;
+      this.scoreType = scoreType;
+      this.distance = distance;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= ORIGINS_PER_TASK) {
+        for (int i = start; i < end; i++) {
+          try {
+            results[i] = score(origins.get(i), scoreType, distance);
+          } catch (RuntimeException e) {
+            LOGGER.error("Accessibility failed for origin "
+                + origins.get(i).getID(), e);
+          }
+        }
+        return;
+      }
+      int middle = (start + end) >>> 1;
+      invokeAll(new ScoreTask(origins, results, scoreType, distance, start,
+          middle), new ScoreTask(origins, results, scoreType, distance,
+          middle, end));
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import oms3.annotations.Description;
+import oms3.annotations.Execute;
+import oms3.annotations.In;
+import oms3.annotations.Name;
+import oms3.annotations.Out;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An OMS Wrapper for network accessibility scores
+ * 
+ * @author amacaulay
+ */
+@Name("accessibility")
+@Description("Counts the destinations within walking distance of each origin along a network, and their gravity")
+public class NetworkAccessibilityOMS {
+
+  static final Logger LOGGER = LoggerFactory
+      .getLogger(NetworkAccessibilityOMS.class);
+  /**
+   * The road network to walk along
+   */
+  @In
+  @Name("Road Network")
+  @Description("The network data set to walk along")
+  public SimpleFeatureSource network;
+  /**
+   * A prepared network file, used instead of the road network
+   */
+  @In
+  @Name("Network file")
+  @Description("A prepared network file (see netexport) to walk along instead of the road network")
+  public File networkFile;
+  /**
+   * The origins
+   */
+  @In
+  @Name("Origins")
+  @Description("The origins (eg addresses) to score")
+  public SimpleFeatureSource origins;
+  /**
+   * The destinations
+   */
+  @In
+  @Name("Destinations")
+  @Description("The destinations (eg shops, schools) to count")
+  public SimpleFeatureSource destinations;
+  /**
+   * The network distance to count destinations within
+   */
+  @In
+  @Name("Maximum walk distance")
+  @Description("Destinations within this network distance of an origin are counted")
+  public Double distance;
+  /**
+   * An attribute to weight destinations by (optional)
+   */
+  @In
+  @Name("Destination weight attribute")
+  @Description("A numeric attribute of the destinations to weight them by (eg floor space), each counts as 1 if not set")
+  public String weightAttribute;
+  /**
+   * The rate at which gravity falls off with distance
+   */
+  @In
+  @Name("Distance decay")
+  @Description("Gravity is weight * exp(-decay * distance), 0 for no fall off with distance")
+  public Double decay = 0.0;
+  /**
+   * The furthest an origin or destination can be from the network
+   */
+  @In
+  @Name("Snap distance")
+  @Description("Origins and destinations further than this from the network are left out")
+  public Double snapDistance = 100.0;
+
+  /**
+   * The scored origins
+   */
+  @Out
+  @Name("Resulting origins")
+  public SimpleFeatureSource results;
+
+  /**
+   * Prepares the network, snaps the destinations and scores every origin
+   */
+  @Execute
+  public void run() {
+
+    validateInputs();
+
+    try {
+      CompactNetwork compactNetwork;
+      if (networkFile != null) {
+        compactNetwork = NetworkFile.read(networkFile);
+      } else {
+        LOGGER.info("Preparing network...");
+        compactNetwork = CompactNetwork.build(network).contract();
+      }
+      NetworkAccessibility accessibility = new NetworkAccessibility(
+          compactNetwork, destinations.getFeatures(), snapDistance,
+          weightAttribute);
+      if (decay != null) {
+        accessibility.setDecay(decay);
+      }
+      LOGGER.info("Scoring origins...");
+      List<SimpleFeature> scored = new ArrayList<SimpleFeature>();
+      for (SimpleFeature origin : accessibility.score(origins.getFeatures(),
+          distance)) {
+        if (origin != null) {
+          scored.add(origin);
+        }
+      }
+      if (scored.isEmpty()) {
+        throw new IllegalStateException(
+            "No origins could be scored. Aborting process");
+      }
+      results = DataUtilities.source(DataUtilities.collection(scored));
+      LOGGER.info("Completed accessibility for {} origins", scored.size());
+    } catch (IOException e) {
+      LOGGER.error(e.getMessage());
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void validateInputs() {
+
+    if (network == null && networkFile == null) {
+      throw new IllegalArgumentException(
+          "Accessibility error: A road network was not provided");
+    }
+
+    if (origins == null) {
+      throw new IllegalArgumentException(
+          "Accessibility error: A set of origins was not provided");
+    }
+
+    if (destinations == null) {
+      throw new IllegalArgumentException(
+          "Accessibility error: A set of destinations was not provided");
+    }
+
+    if (distance == null) {
+      throw new IllegalArgumentException(
+          "Accessibility error: A walking distance must be provided");
+    }
+
+    if (snapDistance == null) {
+      throw new IllegalArgumentException(
+          "Accessibility error: A snap distance must be provided");
+    }
+  }
+}
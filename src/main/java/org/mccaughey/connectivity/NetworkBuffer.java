@@ -25,7 +25,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.geotools.data.DataUtilities;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -37,7 +36,6 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.GeometryCollector;
 import org.geotools.graph.build.feature.FeatureGraphGenerator;
 import org.geotools.graph.build.line.LineStringGraphGenerator;
-import org.geotools.graph.path.Path;
 import org.geotools.graph.structure.Edge;
 import org.geotools.graph.structure.Graph;
 import org.geotools.graph.structure.Node;
@@ -59,10 +57,12 @@ import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 import com.vividsolutions.jts.index.SpatialIndex;
 import com.vividsolutions.jts.index.strtree.STRtree;
-import com.vividsolutions.jts.linearref.LinearLocation;
-import com.vividsolutions.jts.linearref.LocationIndexedLine;
+import com.vividsolutions.jts.linearref.LengthIndexedLine;
 
 /**
  * Generates Network Buffers, which can be used as service areas
@@ -72,7 +72,6 @@ import com.vividsolutions.jts.linearref.LocationIndexedLine;
 public final class NetworkBuffer {
 
 	private static final int GEOMETRY_PRECISION = 10;
-	private static final int INTERSECTION_THRESHOLD = 3;
 	static final Logger LOGGER = LoggerFactory.getLogger(NetworkBuffer.class);
 	private static PrecisionModel precision = new PrecisionModel(
 			GEOMETRY_PRECISION);
@@ -107,77 +106,35 @@ public final class NetworkBuffer {
 				+ bufferDistance);
 		SimpleFeatureCollection networkRegion = featuresInRegion(network,
 				pointBuffer);
-		LocationIndexedLine nearestLine = findNearestEdgeLine(networkRegion,
-				networkDistance, bufferDistance, pointOfInterest);
-		LOGGER.debug("Found nearest edge line {}", nearestLine);
-		if (nearestLine == null) {
+		Graph networkGraph = buildFeatureNetwork(networkRegion).getGraph();
+		LOGGER.debug("Created graph with {} edges", networkGraph.getEdges()
+				.size());
+		Edge originEdge = findNearestEdge(networkGraph, networkDistance,
+				bufferDistance, pointOfInterest);
+		if (originEdge == null) {
 			LOGGER.error("Failed to snap point {} to network",
 					pointFeature.getID());
 			return null;
 		}
-
-		Path startPath = new Path();
-		Graph networkGraph = createGraphWithStartNode(nearestLine, startPath,
-				networkRegion, pointOfInterest);
-		LOGGER.debug("Created graph with start node with {} edges",
-				networkGraph.getEdges().size());
-		Map networkMap = graphToMap(networkGraph);
-		Map serviceArea = new ConcurrentHashMap();
-		NetworkBufferFJ nbfj = new NetworkBufferFJ(networkMap, startPath,
-				networkDistance, serviceArea);
-		serviceArea = nbfj.createBuffer();
+		// The origin is a virtual node part way along the nearest edge, local
+		// to this traversal, so the graph is never modified
+		LengthIndexedLine originLine = new LengthIndexedLine(
+				(Geometry) ((SimpleFeature) originEdge.getObject())
+						.getDefaultGeometry());
+		double originOffset = originLine.project(pointOfInterest
+				.getCoordinate());
+		LOGGER.debug("Snapped to edge {} at {}", originEdge, originOffset);
+
+		NetworkBufferDijkstra dijkstra = new NetworkBufferDijkstra(
+				graphToMap(networkGraph), originEdge, originOffset,
+				networkDistance);
+		Map serviceArea = dijkstra.createBuffer();
 		LOGGER.debug("Found service area for point {} with {} Edges",
 				pointFeature.getID(), serviceArea.size());
 		// writeNetworkFromEdges(serviceArea);
 		return serviceArea;
 	}
 
-	private static Graph createGraphWithStartNode(
-			LocationIndexedLine connectedLine, Path startPath,
-			SimpleFeatureCollection networkRegion, Point pointOfInterest) {
-		Coordinate pt = pointOfInterest.getCoordinate();
-		LinearLocation here = connectedLine.project(pt);
-		Coordinate minDistPoint = connectedLine.extractPoint(here);
-		Geometry lineA = connectedLine.extractLine(
-				connectedLine.getStartIndex(),
-				connectedLine.project(minDistPoint));
-		Geometry lineB = connectedLine.extractLine(
-				connectedLine.project(minDistPoint),
-				connectedLine.getEndIndex());
-		Geometry originalLine = connectedLine.extractLine(
-				connectedLine.getStartIndex(), connectedLine.getEndIndex());
-
-		if ((lineB.getLength() == 0.0) || (lineA.getLength() == 0.0)) {
-			FeatureGraphGenerator networkGraphGen = buildFeatureNetwork(networkRegion);
-		
-			Graph graph = networkGraphGen.getGraph();
-			startPath.add(findStartNode(graph, originalLine));
-			return graph;
-		} else {
-			removeFeature(networkRegion, originalLine);
-
-			GeometryFactory gf = new GeometryFactory(precision);
-			lineA = gf.createLineString(lineA.getCoordinates());
-			lineB = gf.createLineString(lineB.getCoordinates());
-
-			SimpleFeatureType edgeType = createEdgeFeatureType(networkRegion
-					.getSchema().getCoordinateReferenceSystem());
-			SimpleFeature featureB = buildFeatureFromGeometry(edgeType, lineB);
-
-			SimpleFeature featureA = buildFeatureFromGeometry(edgeType, lineA);
-
-			FeatureGraphGenerator networkGraphGen = buildFeatureNetwork(networkRegion);
-			networkGraphGen.add(featureA);
-			networkGraphGen.add(featureB);
-
-			Graph graph = networkGraphGen.getGraph();
-			startPath.add(findStartNode(graph, featureA, featureB));
-
-			return graph;
-
-		}
-	}
-
 	/**
 	 * Constructs a geotools Graph line network from a feature source
 	 * 
@@ -223,60 +180,6 @@ public final class NetworkBuffer {
 		return featureGen;
 	}
 
-	private static Node findStartNode(Graph graph, Geometry startLine) {
-		for (Node node : (Collection<Node>) graph.getNodes()) {
-			if (node.getEdges().size() == INTERSECTION_THRESHOLD) {
-				for (Edge edge : (List<Edge>) node.getEdges()) {
-					SimpleFeature edgeFeature = (SimpleFeature) edge
-							.getObject();
-					Geometry graphGeom = (Geometry) edgeFeature
-							.getDefaultGeometry();
-					if (graphGeom.buffer(1).contains(startLine)) {
-						LOGGER.debug("Found start node");
-						return node;
-					}
-				}
-			}
-		}
-		return null;
-	}
-
-	private static Node findStartNode(Graph graph, SimpleFeature featureA,
-			SimpleFeature featureB) {
-		for (Node node : (Collection<Node>) graph.getNodes()) {
-			if (node.getEdges().size() == 2) {
-				SimpleFeature edgeFeature1 = (SimpleFeature) (((Edge) node
-						.getEdges().toArray()[0]).getObject());
-				SimpleFeature edgeFeature2 = (SimpleFeature) (((Edge) node
-						.getEdges().toArray()[1]).getObject());
-
-				if (edgeFeature1.getID().equals(featureA.getID())
-						&& edgeFeature2.getID().equals(featureB.getID())) {
-					return node;
-				}
-				if (edgeFeature2.getID().equals(featureA.getID())
-						&& edgeFeature1.getID().equals(featureB.getID())) {
-					// LOGGER.debug("Found start node");
-					return node;
-				}
-			}
-		}
-		return null;
-	}
-
-	private static void removeFeature(SimpleFeatureCollection networkRegion,
-			Geometry originalLine) {
-		SimpleFeatureIterator features = networkRegion.features();
-		List<SimpleFeature> newFeatures = new ArrayList();
-		while (features.hasNext()) {
-			SimpleFeature feature = features.next();
-			Geometry geom = (Geometry) feature.getDefaultGeometry();
-			if (!(geom.equals(originalLine))) {
-				newFeatures.add(feature);
-			}
-		}
-	}
-
 	private static Map graphToMap(Graph graph) {
 		Map networkMap = new HashMap();
 		for (Node node : (Collection<Node>) graph.getNodes()) {
@@ -285,12 +188,10 @@ public final class NetworkBuffer {
 		return networkMap;
 	}
 
-	private static LocationIndexedLine findNearestEdgeLine(
-			SimpleFeatureCollection network, Double roadDistance,
-			Double bufferDistance, Point pointOfInterest) throws IOException {
-		// Build network Graph - within bounds
+	private static Edge findNearestEdge(Graph graph, Double roadDistance,
+			Double bufferDistance, Point pointOfInterest) {
 		Double maxDistance = roadDistance + bufferDistance;
-		SpatialIndex index = createLineStringIndex(network);
+		SpatialIndex index = createEdgeIndex(graph);
 
 		Coordinate pt = pointOfInterest.getCoordinate();
 		Envelope search = new Envelope(pt);
@@ -302,56 +203,36 @@ public final class NetworkBuffer {
 		 * it is possible that the point is actually more distant than
 		 * MAX_SEARCH_DISTANCE from a line.
 		 */
-		List<LocationIndexedLine> lines = index.query(search);
-
-		// Initialize the minimum distance found to our maximum acceptable
-		// distance plus a little bit
-		double minDist = maxDistance;// + 1.0e-6;
-		Coordinate minDistPoint = null;
-		LocationIndexedLine connectedLine = null;
+		List<Edge> edges = index.query(search);
 
-		for (LocationIndexedLine line : lines) {
-
-			LinearLocation here = line.project(pt); // What does project do?
-			Coordinate point = line.extractPoint(here); // What does extracPoint
-			// do?
-			double dist = point.distance(pt);
+		double minDist = maxDistance;
+		Edge nearestEdge = null;
+		for (Edge edge : edges) {
+			Geometry geom = (Geometry) ((SimpleFeature) edge.getObject())
+					.getDefaultGeometry();
+			double dist = geom.distance(pointOfInterest);
 			if (dist <= minDist) {
 				minDist = dist;
-				minDistPoint = point;
-				connectedLine = line;
+				nearestEdge = edge;
 			}
 		}
 
-		if (minDistPoint != null) {
+		if (nearestEdge != null) {
 			LOGGER.debug("{} - snapped by moving {}\n", pt.toString(), minDist);
-			return connectedLine;
 		}
-		return null;
+		return nearestEdge;
 	}
 
-	private static SpatialIndex createLineStringIndex(
-			SimpleFeatureCollection network) throws IOException {
+	private static SpatialIndex createEdgeIndex(Graph graph) {
 		SpatialIndex index = new STRtree();
-
-		// Create line string index
-		// Just in case: check for null or empty geometry
-		SimpleFeatureIterator features = network.features();
-		try {
-			while (features.hasNext()) {
-				SimpleFeature feature = features.next();
-				Geometry geom = (Geometry) (feature.getDefaultGeometry());
-				if (geom != null) {
-					Envelope env = geom.getEnvelopeInternal();
-					if (!env.isNull()) {
-						index.insert(env, new LocationIndexedLine(geom));
-					}
-				}
+		for (Edge edge : (Collection<Edge>) graph.getEdges()) {
+			Geometry geom = (Geometry) ((SimpleFeature) edge.getObject())
+					.getDefaultGeometry();
+			// Just in case: check for null or empty geometry
+			if (geom != null && !geom.isEmpty()) {
+				index.insert(geom.getEnvelopeInternal(), edge);
 			}
-		} finally {
-			features.close();
 		}
-
 		return index;
 	}
 
@@ -367,18 +248,79 @@ public final class NetworkBuffer {
 	 */
 	public static SimpleFeature createBufferFromEdges(Map serviceArea,
 			Double distance, SimpleFeature sourceFeature, String id) {
+		List<Geometry> lines = new ArrayList();
+		for (Object edge : serviceArea.keySet()) {
+			lines.add(((ServiceAreaEdge) serviceArea.get(edge)).getGeometry());
+		}
+		return createBufferFromLines(lines, distance, sourceFeature, id);
+	}
+
+	/**
+	 * Counts the connections (3 or more legged nodes) within a service area's
+	 * buffer, as ConnectivityIndex would with the buffer as the region. The
+	 * search starts from the nodes the traversal reached and spreads along
+	 * the graph to every node inside the buffer, so the network does not need
+	 * to be queried again. Only nodes connected to the reached nodes within
+	 * the buffer are found.
+	 * 
+	 * @param serviceArea
+	 *            The set of service area edges
+	 * @param buffer
+	 *            The buffered service area
+	 * @return The number of connections within the buffer
+	 */
+	public static int countConnections(Map serviceArea, Geometry buffer) {
+		PreparedGeometry prepared = PreparedGeometryFactory.prepare(buffer);
+		Set<Node> inside = new HashSet<Node>();
+		List<Node> pending = new ArrayList<Node>();
+		for (Object value : serviceArea.values()) {
+			ServiceAreaEdge edge = (ServiceAreaEdge) value;
+			pending.add(edge.getEdge().getNodeA());
+			pending.add(edge.getEdge().getNodeB());
+		}
+		int count = 0;
+		while (!pending.isEmpty()) {
+			Node node = pending.remove(pending.size() - 1);
+			if (inside.contains(node)
+					|| !prepared.intersects((Point) node.getObject())) {
+				continue;
+			}
+			inside.add(node);
+			if (node.getDegree() >= ConnectivityIndex.CONNECTION_DEGREE) {
+				count++;
+			}
+			for (Edge edge : (List<Edge>) node.getEdges()) {
+				pending.add(edge.getOtherNode(node));
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Generates a buffered service area from a set of service area lines
+	 * 
+	 * @param lines
+	 *            The service area line geometries
+	 * @param distance
+	 *            the distance to buffer
+	 * @param sourceFeature
+	 *            The feature whose attributes are copied to the buffer
+	 * @param id
+	 *            The id of the buffer feature
+	 * @return A buffered service area
+	 */
+	public static SimpleFeature createBufferFromLines(
+			Collection<? extends Geometry> lines, Double distance,
+			SimpleFeature sourceFeature, String id) {
 		LOGGER.debug("Creating Buffer");
-		Set<Edge> edges = serviceArea.keySet();
+		Collection<? extends Geometry> edges = lines;
 		Geometry all = null;
 		while (edges.size() > 0) {
 		
-			Set<Edge> unjoined = new HashSet();
-			for (Edge edge : edges) {
+			List<Geometry> unjoined = new ArrayList();
+			for (Geometry edge : edges) {
 			
-				Geometry geom = (Geometry) ((SimpleFeature) serviceArea
-						.get(edge)).getDefaultGeometry();
-				
-				geom = geom.union();
+				Geometry geom = edge.union();
 			
 				double bufferDistance = distance;
 		
@@ -419,7 +361,7 @@ public final class NetworkBuffer {
 		return buildFeatureFromGeometry(sourceFeature, all, id);
 	}
 
-	private static SimpleFeature buildFeatureFromGeometry(
+	static SimpleFeature buildFeatureFromGeometry(
 			SimpleFeature sourceFeature, Geometry geom, String id) {
 		SimpleFeatureType sft = (SimpleFeatureType) sourceFeature.getType();
 		SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
@@ -442,18 +384,29 @@ public final class NetworkBuffer {
 	}
 
 	/**
-	 * Creates a line network representation of service area from set of Edges
+	 * Creates a line network representation of service area from set of Edges,
+	 * the features are only built here (the service area holds lightweight
+	 * edge records)
 	 * 
 	 * @param serviceArea
 	 *            The service area edges
-	 * @return The edges as SimpleFeature
+	 * @return The edges as SimpleFeature, with the minimum distance as the
+	 *         "Distance" attribute
 	 */
 	public static List<SimpleFeature> createLinesFromEdges(Map serviceArea) {
 		Set<Edge> edges = serviceArea.keySet();
 		List<SimpleFeature> features = new ArrayList();
 
+		SimpleFeatureType edgeType = null;
 		for (Edge edge : edges) {
-			features.add(((SimpleFeature) serviceArea.get(edge)));
+			ServiceAreaEdge record = (ServiceAreaEdge) serviceArea.get(edge);
+			if (edgeType == null) {
+				edgeType = NetworkBufferFJ
+						.createEdgeFeatureType(((SimpleFeature) record
+								.getEdge().getObject()).getType()
+								.getCoordinateReferenceSystem());
+			}
+			features.add(record.toFeature(edgeType));
 		}
 		return features;
 	}
@@ -475,7 +428,8 @@ public final class NetworkBuffer {
 		GeometryCollector gc = new GeometryCollector();
 		List<Coordinate> coords = new ArrayList();
 		for (Edge edge : edges) {
-			Geometry geom = (Geometry) serviceArea.get(edge);
+			Geometry geom = ((ServiceAreaEdge) serviceArea.get(edge))
+					.getGeometry();
 			gc.add(geom);
 			Coordinate coordinate = geom.getCoordinate();
 			coords.add(coordinate);
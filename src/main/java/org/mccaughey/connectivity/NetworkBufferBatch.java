@@ -19,22 +19,34 @@ package org.mccaughey.connectivity;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorCompletionService;
 
+import jsr166y.ForkJoinPool;
+import jsr166y.ForkJoinTask;
+
+import org.geotools.data.DataUtilities;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.feature.DefaultFeatureCollection;
+import org.mccaughey.utilities.CollectionFeatureSink;
+import org.mccaughey.utilities.FeatureSink;
+import org.mccaughey.utilities.HilbertOrder;
 import org.opengis.feature.simple.SimpleFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygonal;
+
 /**
  * Generates network buffers for a set of points, using Fork/Join for
  * concurrency
@@ -49,13 +61,33 @@ public class NetworkBufferBatch { //extends RecursiveAction {
   // private static final long serialVersionUID = 1L;
   static final Logger LOGGER = LoggerFactory
       .getLogger(NetworkBufferBatch.class);
+  /**
+   * The default estimated cost of a task, in network edges within reach
+   */
+  private static final double DEFAULT_CHUNK_COST = 5000;
+  /**
+   * The default furthest a polygon origin's network entry points can be from
+   * it
+   */
+  static final double DEFAULT_ENTRY_TOLERANCE = 30;
   private SimpleFeatureSource network;
+  private CompactNetwork compactNetwork;
+  private TiledNetworkCache tiles;
   private SimpleFeatureCollection points;
   private DefaultFeatureCollection buffers;
   private DefaultFeatureCollection graphs;
   private Double distance;
+  private List<Double> distances;
   private Double bufferSize;
-  private int pointsPerThread;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private double chunkCost = DEFAULT_CHUNK_COST;
+  private DensityGrid density;
+  private int maxInFlight;
+  private ServiceAreaCache cache;
+  private boolean spatialOrder;
+  private double entryTolerance = DEFAULT_ENTRY_TOLERANCE;
+  private boolean connectivity;
+  private boolean parallelTraversal;
 
   /**
    * Generates network buffers for a set of points
@@ -77,7 +109,93 @@ public class NetworkBufferBatch { //extends RecursiveAction {
     this.bufferSize = bufferSize;
     this.buffers = new DefaultFeatureCollection();
     this.graphs = new DefaultFeatureCollection();
-    this.pointsPerThread = 1000; // TODO: make this dynamic
+  }
+
+  /**
+   * Generates network buffers for a set of points on a network that has been
+   * loaded and indexed once for the whole batch, each point then only snaps to
+   * and traverses the shared network
+   * 
+   * @param network
+   *          The prepared network to use to generate service networks
+   * @param points
+   *          The set of points of interest
+   * @param distance
+   *          The distance to traverse along the network.
+   * @param bufferSize
+   *          The length to buffer the service network
+   */
+  public NetworkBufferBatch(CompactNetwork network,
+      SimpleFeatureCollection points, Double distance, Double bufferSize) {
+    this.compactNetwork = network;
+    this.points = points;
+    this.distance = distance;
+    this.bufferSize = bufferSize;
+    this.buffers = new DefaultFeatureCollection();
+    this.graphs = new DefaultFeatureCollection();
+  }
+
+  /**
+   * Generates network buffers for a set of points on a network too large to
+   * prepare as a whole, each point snaps to and traverses the prepared network
+   * of the tile it is in
+   * 
+   * @param tiles
+   *          The tiles of the network to use to generate service networks
+   * @param points
+   *          The set of points of interest
+   * @param distance
+   *          The distance to traverse along the network.
+   * @param bufferSize
+   *          The length to buffer the service network
+   */
+  public NetworkBufferBatch(TiledNetworkCache tiles,
+      SimpleFeatureCollection points, Double distance, Double bufferSize) {
+    this.tiles = tiles;
+    this.points = points;
+    this.distance = distance;
+    this.bufferSize = bufferSize;
+    this.buffers = new DefaultFeatureCollection();
+    this.graphs = new DefaultFeatureCollection();
+  }
+
+  /**
+   * Generates network buffers for a set of points at several network
+   * distances on the tiles of a network
+   * 
+   * @param tiles
+   *          The tiles of the network to use to generate service networks
+   * @param points
+   *          The set of points of interest
+   * @param distances
+   *          The distances to traverse along the network.
+   * @param bufferSize
+   *          The length to buffer the service network
+   */
+  public NetworkBufferBatch(TiledNetworkCache tiles,
+      SimpleFeatureCollection points, List<Double> distances, Double bufferSize) {
+    this(tiles, points, Collections.max(distances), bufferSize);
+    this.distances = distances;
+  }
+
+  /**
+   * Generates network buffers for a set of points at several network
+   * distances, the shared network is traversed once per point (to the largest
+   * distance) and a buffer is made for each distance
+   * 
+   * @param network
+   *          The prepared network to use to generate service networks
+   * @param points
+   *          The set of points of interest
+   * @param distances
+   *          The distances to traverse along the network.
+   * @param bufferSize
+   *          The length to buffer the service network
+   */
+  public NetworkBufferBatch(CompactNetwork network,
+      SimpleFeatureCollection points, List<Double> distances, Double bufferSize) {
+    this(network, points, Collections.max(distances), bufferSize);
+    this.distances = distances;
   }
 
   /**
@@ -89,54 +207,321 @@ public class NetworkBufferBatch { //extends RecursiveAction {
     return graphs;
   }
 
+  /**
+   * @param parallelism
+   *          The number of threads to generate buffers with (by default the
+   *          number of processors)
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Points are grouped into tasks until the estimated cost of the task
+   * reaches the chunk cost, the cost of a point on a shared network being the
+   * number of edges within reach of it. Points in sparse areas are grouped
+   * together while points in dense areas get a task each.
+   * 
+   * @param chunkCost
+   *          The estimated cost of a task
+   */
+  public void setChunkCost(double chunkCost) {
+    this.chunkCost = chunkCost;
+  }
+
+  /**
+   * Reuses service areas between points that snap to (nearly) the same network
+   * location, only used when buffering on a shared network
+   * 
+   * @param cache
+   *          The cache to look up and store service areas in
+   */
+  public void setCache(ServiceAreaCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Processes the points along a Hilbert curve rather than in the order they
+   * are read, so consecutive tasks (and the points within a task) work on the
+   * same part of the network and the service area cache gets more hits. The
+   * points are all read before any are buffered.
+   * 
+   * @param spatialOrder
+   *          true to sort the points spatially
+   */
+  public void setSpatialOrder(boolean spatialOrder) {
+    this.spatialOrder = spatialOrder;
+  }
+
+  /**
+   * Polygon origins (eg parcels, parks) are entered from every network edge
+   * within this distance of them, all at once in a single traversal
+   * 
+   * @param entryTolerance
+   *          The furthest an entry edge can be from a polygon origin
+   */
+  public void setEntryTolerance(double entryTolerance) {
+    this.entryTolerance = entryTolerance;
+  }
+
+  /**
+   * Adds "Connectivity", "Area" and "Connections" attributes (as
+   * ConnectivityIndex) to each buffer, counting the connections within the
+   * buffer from the network already in memory rather than querying the
+   * network data set again with each buffer.
+   * 
+   * @param connectivity
+   *          true to count the connections in each buffer
+   */
+  public void setConnectivity(boolean connectivity) {
+    this.connectivity = connectivity;
+  }
+
+  /**
+   * Traverses the network from each point with the parallel (delta stepping)
+   * traversal, and buffers its service area with the parallel cascaded
+   * buffer, on the same threads as the batch, rather than one thread per
+   * point. This suits few points on a large network, where each service area
+   * is large and there are not enough points to keep the threads busy.
+   * 
+   * @param parallelTraversal
+   *          true to traverse the network in parallel
+   */
+  public void setParallelTraversal(boolean parallelTraversal) {
+    this.parallelTraversal = parallelTraversal;
+  }
+
+  /**
+   * Sets the maximum number of tasks being buffered (or buffered and waiting
+   * to be written) at once, by default a few per thread
+   * 
+   * @param maxInFlight
+   *          The size of the window of outstanding points
+   */
+  public void setMaxInFlight(int maxInFlight) {
+    this.maxInFlight = maxInFlight;
+  }
+
   /**
    * 
    * @return A SimpleFeatureCollection consisting of the buffered service areas
    *         for each point of interest
    */
   public SimpleFeatureCollection createBuffers() {
-    ExecutorService executorService = Executors.newFixedThreadPool(Runtime
-        .getRuntime().availableProcessors());
-    
     try {
-    List<Future> futures = new ArrayList<Future>();
+      createBuffers(new CollectionFeatureSink(buffers));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return buffers;
+  }
+
+  /**
+   * Generates the buffers and writes each one to a sink as it completes. Only
+   * a bounded window of tasks (chunks of points) is in progress at a time,
+   * points are only read and submitted as completed buffers are written, so
+   * memory use does not grow with the number of points. Buffers are written
+   * from the calling thread, in order of completion. The sink is not closed.
+   * 
+   * @param sink
+   *          Receives the buffered service areas
+   * @return The number of buffers written
+   * @throws IOException
+   *           If the sink fails to write a buffer
+   */
+  public int createBuffers(FeatureSink sink) throws IOException {
+    // Work stealing keeps threads busy when task costs are uneven
+    ForkJoinPool executorService = new ForkJoinPool(parallelism);
+    CompletionService<List<SimpleFeature>> completionService;
+    completionService = new ExecutorCompletionService<List<SimpleFeature>>(
+        executorService);
+    int window = maxInFlight > 0 ? maxInFlight : parallelism * 4;
+    int inFlight = 0;
     int count = 0;
-    SimpleFeatureIterator features = points.features();
-    while (features.hasNext()) {
-        LOGGER.debug("Buffer count {}", ++count);
-        SimpleFeature point = features.next();
-        Buffernator ac = new Buffernator(point, network);
-        Future future = executorService.submit(ac);
-        futures.add(future);
+    int written = 0;
+    List<SimpleFeature> chunk = new ArrayList<SimpleFeature>();
+    double cost = 0;
+    SimpleFeatureIterator features;
+    if (spatialOrder) {
+      features = DataUtilities.collection(HilbertOrder.sort(points))
+          .features();
+    } else {
+      features = points.features();
     }
-    for (Future future : futures) {
-      try {
-        buffers.add((SimpleFeature)(future.get()));
-        LOGGER.debug("Completing Buffer");
-      } catch (ExecutionException e) {
-        LOGGER.error("Buffer generation failed for a point", e);
+    try {
+      while (features.hasNext()) {
+        SimpleFeature point = features.next();
+        LOGGER.debug("Buffer count {}", ++count);
+        chunk.add(point);
+        cost += estimateCost(point);
+        if (cost < chunkCost && features.hasNext()) {
+          continue;
+        }
+        if (inFlight == window) {
+          written += writeNext(completionService, sink);
+          inFlight--;
+        }
+        completionService.submit(new Buffernator(chunk));
+        inFlight++;
+        chunk = new ArrayList<SimpleFeature>();
+        cost = 0;
+      }
+      while (inFlight > 0) {
+        written += writeNext(completionService, sink);
+        inFlight--;
+      }
+      LOGGER.debug("Completed {} buffers for {} points", written, count);
+      if (cache != null) {
+        LOGGER.info("Service area cache: {}", cache);
+      }
+      if (tiles != null) {
+        LOGGER.info("Network tiles: {}", tiles);
       }
-    }
-    LOGGER.debug("Completed {} buffers for {} points", buffers.size(), points.size());
     } catch (InterruptedException e) {
       throw new IllegalStateException(e);
     } finally {
+      features.close();
       executorService.shutdownNow();
     }
-    
-    return buffers;
+    return written;
+  }
+
+  /**
+   * Estimates the cost of buffering a point as the number of network edges
+   * that could be within reach of it
+   */
+  private double estimateCost(SimpleFeature point) {
+    if (compactNetwork == null) {
+      // no index to estimate from (tiles are only prepared when buffering),
+      // give each point a task of its own
+      return chunkCost;
+    }
+    if (density == null) {
+      density = new DensityGrid(compactNetwork, distance + bufferSize);
+    }
+    Envelope reach = new Envelope(((Geometry) point.getDefaultGeometry())
+        .getEnvelopeInternal());
+    reach.expandBy(distance + bufferSize);
+    return 1 + density.estimate(reach);
+  }
+
+  /**
+   * A coarse grid of the number of network edges (by envelope centre) in each
+   * cell, counted once so estimating the edges within reach of a point is a
+   * few array reads rather than an index query
+   */
+  private static final class DensityGrid {
+    private static final int MAX_CELLS = 1 << 20;
+    private static final int MAX_CELLS_PER_SIDE = 1 << 12;
+    private final Envelope extent = new Envelope();
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final int[] counts;
+
+    DensityGrid(CompactNetwork network, double reach) {
+      int edgeCount = network.getEdgeCount();
+      double[] centreX = new double[edgeCount];
+      double[] centreY = new double[edgeCount];
+      for (int e = 0; e < edgeCount; e++) {
+        Coordinate centre = network.getEdgeEnvelope(e).centre();
+        centreX[e] = centre.x;
+        centreY[e] = centre.y;
+        extent.expandToInclude(centre);
+      }
+      // cells about the size of the reach, but never too many of them
+      cellSize = Math.max(Math.max(reach, 1.0), Math.max(Math.sqrt(extent
+          .getArea() / MAX_CELLS), Math.max(extent.getWidth(), extent
+          .getHeight()) / MAX_CELLS_PER_SIDE));
+      columns = (int) (extent.getWidth() / cellSize) + 1;
+      rows = (int) (extent.getHeight() / cellSize) + 1;
+      counts = new int[columns * rows];
+      for (int e = 0; e < edgeCount; e++) {
+        counts[row(centreY[e]) * columns + column(centreX[e])]++;
+      }
+    }
+
+    /**
+     * @return The number of edges expected within an envelope, from the
+     *         density of the cells it overlaps
+     */
+    double estimate(Envelope reach) {
+      if (!reach.intersects(extent)) {
+        return 0;
+      }
+      int firstColumn = column(reach.getMinX());
+      int lastColumn = column(reach.getMaxX());
+      int firstRow = row(reach.getMinY());
+      int lastRow = row(reach.getMaxY());
+      long edges = 0;
+      for (int r = firstRow; r <= lastRow; r++) {
+        for (int c = firstColumn; c <= lastColumn; c++) {
+          edges += counts[r * columns + c];
+        }
+      }
+      double cellsArea = (lastColumn - firstColumn + 1)
+          * (lastRow - firstRow + 1) * cellSize * cellSize;
+      // the part of the reach outside the network has no edges
+      return edges
+          * Math.min(1.0, reach.intersection(extent).getArea() / cellsArea);
+    }
+
+    private int column(double x) {
+      return Math.max(0, Math.min(columns - 1,
+          (int) ((x - extent.getMinX()) / cellSize)));
+    }
+
+    private int row(double y) {
+      return Math.max(0, Math.min(rows - 1,
+          (int) ((y - extent.getMinY()) / cellSize)));
+    }
+  }
+
+  /**
+   * Waits for the next point to complete and writes its buffers
+   */
+  private int writeNext(
+      CompletionService<List<SimpleFeature>> completionService,
+      FeatureSink sink) throws InterruptedException, IOException {
+    int written = 0;
+    try {
+      for (SimpleFeature buffer : completionService.take().get()) {
+        if (buffer != null) {
+          sink.write(buffer);
+          written++;
+        }
+      }
+      LOGGER.debug("Completing Buffer");
+    } catch (ExecutionException e) {
+      LOGGER.error("Buffer generation failed for a point", e);
+    }
+    return written;
   }
 
-  class Buffernator implements Callable<SimpleFeature> {
-    private SimpleFeature point;
-    private SimpleFeatureSource network;
+  class Buffernator implements Callable<List<SimpleFeature>> {
+    private List<SimpleFeature> points;
 
-    Buffernator(SimpleFeature point, SimpleFeatureSource network) {
-      this.point = point;
-      this.network = network;
+    Buffernator(List<SimpleFeature> points) {
+      this.points = points;
     }
 
-    public SimpleFeature call() throws IOException {
+    public List<SimpleFeature> call() throws IOException {
+      List<SimpleFeature> results = new ArrayList<SimpleFeature>();
+      for (SimpleFeature point : points) {
+        try {
+          results.addAll(buffer(point));
+        } catch (RuntimeException e) {
+          LOGGER.error("Buffer generation failed for point " + point.getID(),
+              e);
+        }
+      }
+      return results;
+    }
+
+    private List<SimpleFeature> buffer(SimpleFeature point) throws IOException {
+      if (compactNetwork != null || tiles != null) {
+        return bufferOnSharedNetwork(point);
+      }
       LOGGER.debug("Calculating service network");
       Map serviceArea = NetworkBuffer.findServiceArea(network, point, distance,
           bufferSize);
@@ -144,8 +529,147 @@ public class NetworkBufferBatch { //extends RecursiveAction {
       LOGGER.debug("Buffering service network");
       SimpleFeature networkBuffer = NetworkBuffer.createBufferFromEdges(
           serviceArea, bufferSize, point, String.valueOf(point.getID()));
+      if (connectivity && networkBuffer != null) {
+        networkBuffer = ConnectivityIndex.buildConnectivityFeature(
+            networkBuffer, (Geometry) networkBuffer.getDefaultGeometry(),
+            NetworkBuffer.countConnections(serviceArea,
+                (Geometry) networkBuffer.getDefaultGeometry()));
+      }
       // if (networkBuffer != null) {
-      return networkBuffer;
+      return Collections.singletonList(networkBuffer);
+    }
+
+    private List<SimpleFeature> bufferOnSharedNetwork(SimpleFeature point)
+        throws IOException {
+      CompactNetwork pointNetwork = compactNetwork;
+      if (pointNetwork == null) {
+        // the whole origin has to be on the network, not just its centre
+        pointNetwork = tiles.getNetwork(((Geometry) point.getDefaultGeometry())
+            .getEnvelopeInternal());
+      }
+      NetworkLocation[] origins = CompactNetworkBuffer.locateAll(pointNetwork,
+          point, entryTolerance, distance + bufferSize);
+      if (origins.length == 0) {
+        return Collections.emptyList();
+      }
+      List<Double> thresholds = distances != null ? distances : Collections
+          .singletonList(distance);
+      // only single locations are cached, areas are rarely shared
+      boolean cached = cache != null && origins.length == 1;
+      List<Geometry> geometries = null;
+      if (cached) {
+        geometries = cache.get(pointNetwork, origins[0], thresholds,
+            bufferSize);
+      }
+      if (geometries == null) {
+        CompactServiceArea serviceArea = findServiceArea(pointNetwork,
+            origins, distance);
+        geometries = bufferGeometries(serviceArea, thresholds);
+        if (cached) {
+          cache.put(pointNetwork, origins[0], thresholds, bufferSize,
+              geometries);
+        }
+      }
+      if (distances != null) {
+        geometries = snappedBands(pointNetwork,
+            point.getDefaultGeometry() instanceof Polygonal, origins,
+            geometries);
+      }
+      String id = String.valueOf(point.getID());
+      List<SimpleFeature> buffers;
+      if (distances != null) {
+        buffers = CompactNetworkBuffer.buildBandFeatures(distances,
+            geometries, point, id);
+      } else if (geometries.get(0) == null) {
+        return Collections.emptyList();
+      } else {
+        buffers = Collections.singletonList(NetworkBuffer
+            .buildFeatureFromGeometry(point, geometries.get(0), id));
+      }
+      if (connectivity) {
+        return addConnectivity(buffers, pointNetwork, geometries);
+      }
+      return buffers;
+    }
+
+    private CompactServiceArea findServiceArea(CompactNetwork pointNetwork,
+        NetworkLocation[] origins, double d) {
+      ForkJoinPool pool = parallelPool();
+      if (pool != null) {
+        return CompactNetworkBuffer.findServiceArea(pointNetwork, origins, d,
+            pool, pointNetwork.getMeanEdgeLength());
+      }
+      return CompactNetworkBuffer.findServiceArea(pointNetwork, origins, d);
+    }
+
+    private List<Geometry> bufferGeometries(CompactServiceArea serviceArea,
+        List<Double> thresholds) {
+      return CompactNetworkBuffer.bufferGeometries(serviceArea, thresholds,
+          bufferSize, parallelPool());
+    }
+
+    /**
+     * @return The batch's own pool (this task is one of its workers) when
+     *         traversing and buffering in parallel, otherwise null
+     */
+    private ForkJoinPool parallelPool() {
+      return parallelTraversal ? ForkJoinTask.getPool() : null;
+    }
+
+    /**
+     * Origins are snapped within the largest distance (plus the buffer size),
+     * a band only keeps the origins a run at its own distance would have
+     * snapped, so one run with several distances gives the same buffers as a
+     * run for each distance. A band with none of the origins is left out, one
+     * with only some of them is traversed again from those.
+     */
+    private List<Geometry> snappedBands(CompactNetwork pointNetwork,
+        boolean polygonal, NetworkLocation[] origins, List<Geometry> geometries) {
+      List<Geometry> bands = new ArrayList<Geometry>(geometries);
+      for (int i = 0; i < distances.size(); i++) {
+        double limit = distances.get(i) + bufferSize;
+        if (polygonal) {
+          // entry edges are found within the entry tolerance at any distance
+          limit = Math.max(limit, entryTolerance);
+        }
+        List<NetworkLocation> snapped = new ArrayList<NetworkLocation>();
+        for (NetworkLocation origin : origins) {
+          if (origin.getSnapDistance() <= limit) {
+            snapped.add(origin);
+          }
+        }
+        if (snapped.isEmpty()) {
+          bands.set(i, null);
+        } else if (snapped.size() < origins.length) {
+          List<Double> band = Collections.singletonList(distances.get(i));
+          CompactServiceArea serviceArea = findServiceArea(pointNetwork,
+              snapped.toArray(new NetworkLocation[snapped.size()]), distances
+                  .get(i));
+          bands.set(i, bufferGeometries(serviceArea, band).get(0));
+        }
+      }
+      return bands;
+    }
+
+    /**
+     * Adds the connections within each buffer polygon, found from the
+     * network's edge index, the buffers are those of the non null geometries
+     * in distance order
+     */
+    private List<SimpleFeature> addConnectivity(List<SimpleFeature> buffers,
+        CompactNetwork pointNetwork, List<Geometry> geometries) {
+      int[] thresholds = { ConnectivityIndex.CONNECTION_DEGREE };
+      List<SimpleFeature> counted = new ArrayList<SimpleFeature>(
+          buffers.size());
+      int b = 0;
+      for (Geometry geometry : geometries) {
+        if (geometry != null) {
+          counted.add(ConnectivityIndex.buildConnectivityFeature(
+              buffers.get(b++), geometry, ConnectivityIndex.countConnections(
+                  pointNetwork, geometry, thresholds)[0]));
+        }
+      }
+      return counted;
     }
   }
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.geotools.graph.path.Path;
+import org.geotools.graph.structure.Edge;
+import org.geotools.graph.structure.Node;
+import org.geotools.graph.structure.basic.BasicEdge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A shortest path (Dijkstra) network service area generator. Rather than
+ * exploring every simple path from the start node (see NetworkBufferFJ) each
+ * node is settled once, in order of network distance, and nodes further than
+ * the maximum distance are never queued. Edges that can only be partly
+ * traversed are chopped the same way as NetworkBufferFJ chops them.
+ *
+ * @author amacaulay
+ */
+public class NetworkBufferDijkstra {
+
+  static final Logger LOGGER = LoggerFactory
+      .getLogger(NetworkBufferDijkstra.class);
+  private final Map<Node, List<Edge>> network;
+  private final Node start;
+  private final Edge originEdge;
+  private final double originOffset;
+  private final Double distance;
+  private final Map<Node, Integer> nodeIds;
+  private final List<Node> nodes;
+  private double[] nodeDistances;
+
+  /**
+   * Intialise inputs
+   *
+   * @param network
+   *          Network/graph dataset, a map of each node to its edges
+   * @param startPath
+   *          A path holding the start node
+   * @param distance
+   *          The maximum distance to traverse a path
+   */
+  public NetworkBufferDijkstra(Map network, Path startPath, Double distance) {
+    this.network = edgesByNode(network);
+    this.start = startPath.getLast();
+    this.originEdge = null;
+    this.originOffset = 0.0;
+    this.distance = distance;
+    this.nodeIds = new HashMap<Node, Integer>();
+    this.nodes = new ArrayList<Node>();
+  }
+
+  /**
+   * Intialise inputs, starting from a location part way along an edge. The
+   * start is a virtual node local to this traversal, the network itself is
+   * not changed so it can be shared between traversals.
+   *
+   * @param network
+   *          Network/graph dataset, a map of each node to its edges
+   * @param originEdge
+   *          The edge the start location is on
+   * @param originOffset
+   *          The distance of the start location along the edge geometry
+   * @param distance
+   *          The maximum distance to traverse a path
+   */
+  public NetworkBufferDijkstra(Map network, Edge originEdge,
+      double originOffset, Double distance) {
+    this.network = edgesByNode(network);
+    this.start = null;
+    this.originEdge = originEdge;
+    this.originOffset = originOffset;
+    this.distance = distance;
+    this.nodeIds = new HashMap<Node, Integer>();
+    this.nodes = new ArrayList<Node>();
+  }
+
+  /**
+   * The network graph is passed around as a raw map (see NetworkBuffer), of
+   * each node to the list of its edges
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<Node, List<Edge>> edgesByNode(Map network) {
+    return (Map<Node, List<Edge>>) network;
+  }
+
+  /**
+   * Finds the service area
+   *
+   * @return A complete service area - map of edges to ServiceAreaEdge records
+   *         (the reached part of the edge and its minimum distance) for all
+   *         edges and parts of edges within the maximum distance
+   */
+  public Map<Edge, ServiceAreaEdge> createBuffer() {
+    Map<Edge, ServiceAreaEdge> serviceArea = new HashMap<Edge, ServiceAreaEdge>();
+    if (start == null && originEdge == null) {
+      LOGGER.error("No start node for service area");
+      return serviceArea;
+    }
+    settleNodes();
+
+    Set<Edge> visited = new HashSet<Edge>();
+    if (originEdge != null) {
+      visited.add(originEdge);
+      addOriginEdge(serviceArea);
+    }
+    for (Node node : nodes) {
+      for (Edge edge : network.get(node)) {
+        if (visited.add(edge)) {
+          addEdge(serviceArea, edge);
+        }
+      }
+    }
+    LOGGER.trace("Settled {} nodes, service area has {} edges", nodes.size(),
+        serviceArea.size());
+    return serviceArea;
+  }
+
+  /**
+   * Settles every node within the maximum distance of the start node (or of
+   * the start location, through either end of its edge). Only nodes within
+   * the maximum distance are ever queued, so every numbered node ends up
+   * settled.
+   */
+  private void settleNodes() {
+    int capacity = network.size() + 1;
+    nodeDistances = new double[capacity];
+    Arrays.fill(nodeDistances, Double.POSITIVE_INFINITY);
+    NodeHeap heap = new NodeHeap(capacity);
+
+    if (originEdge == null) {
+      seed(heap, start, 0.0);
+    } else {
+      seed(heap, originEdge.getNodeA(), originOffset);
+      seed(heap, originEdge.getNodeB(), edgeLength(originEdge) - originOffset);
+    }
+    while (!heap.isEmpty()) {
+      int current = heap.poll();
+      Node node = nodes.get(current);
+      for (Edge edge : network.get(node)) {
+        double nextDistance = nodeDistances[current] + edgeLength(edge);
+        if (nextDistance <= distance) {
+          int next = nodeId(edge.getOtherNode(node));
+          if (nextDistance < nodeDistances[next]) {
+            nodeDistances[next] = nextDistance;
+            heap.insertOrDecrease(next, nextDistance);
+          }
+        }
+      }
+    }
+  }
+
+  private void seed(NodeHeap heap, Node node, double nodeDistance) {
+    if (nodeDistance <= distance) {
+      int id = nodeId(node);
+      if (nodeDistance < nodeDistances[id]) {
+        nodeDistances[id] = nodeDistance;
+        heap.insertOrDecrease(id, nodeDistance);
+      }
+    }
+  }
+
+  private int nodeId(Node node) {
+    Integer id = nodeIds.get(node);
+    if (id == null) {
+      id = nodes.size();
+      nodeIds.put(node, id);
+      nodes.add(node);
+    }
+    return id;
+  }
+
+  private double nodeDistance(Node node) {
+    Integer id = nodeIds.get(node);
+    return id == null ? Double.POSITIVE_INFINITY : nodeDistances[id];
+  }
+
+  /**
+   * Adds a whole edge if it can be traversed from either end within the
+   * maximum distance (or its ends can be reached and the partial traversals
+   * from each end meet), otherwise adds the chopped part(s) of the edge
+   */
+  private void addEdge(Map<Edge, ServiceAreaEdge> serviceArea, Edge edge) {
+    Node nodeA = edge.getNodeA();
+    Node nodeB = edge.getNodeB();
+    double length = edgeLength(edge);
+    double distanceA = nodeDistance(nodeA);
+    double distanceB = nodeDistance(nodeB);
+
+    if ((distanceA + length <= distance) || (distanceB + length <= distance)
+        || ((distance - distanceA) + (distance - distanceB) >= length)) {
+      serviceArea.put(edge,
+          ServiceAreaEdge.whole(edge, length, Math.min(distanceA, distanceB)));
+    } else if (nodeA.equals(nodeB)) {
+      // looped feature, chopped edges from each direction
+      serviceArea.put(edge, ServiceAreaEdge.chopped(edge, length, nodeA,
+          distance - distanceA, distanceA));
+      serviceArea.put(new BasicEdge(nodeA, nodeB), ServiceAreaEdge
+          .choppedBackwards(edge, length, nodeA, distance - distanceA,
+              distanceA));
+    } else {
+      if (distanceA <= distance) {
+        serviceArea.put(edge, ServiceAreaEdge.chopped(edge, length,
+            nodeA, distance - distanceA, distanceA));
+      }
+      if (distanceB <= distance) {
+        // Both ends are partly reached, so the second part gets its own key
+        Edge key = serviceArea.containsKey(edge) ? new BasicEdge(nodeA, nodeB)
+            : edge;
+        serviceArea.put(key, ServiceAreaEdge.chopped(edge, length,
+            nodeB, distance - distanceB, distanceB));
+      }
+    }
+  }
+
+  /**
+   * Adds the reached parts of the edge the start location is on, these can be
+   * reached directly from the start location as well as through either end
+   */
+  private void addOriginEdge(Map<Edge, ServiceAreaEdge> serviceArea) {
+    double length = edgeLength(originEdge);
+    double distanceA = nodeDistance(originEdge.getNodeA());
+    double distanceB = nodeDistance(originEdge.getNodeB());
+    double[] intervals = new double[6];
+    int count = 0;
+    intervals[count++] = Math.max(0.0, originOffset - distance);
+    intervals[count++] = Math.min(length, originOffset + distance);
+    if (distanceA <= distance) {
+      intervals[count++] = 0.0;
+      intervals[count++] = Math.min(length, distance - distanceA);
+    }
+    if (distanceB <= distance) {
+      intervals[count++] = Math.max(0.0, length - (distance - distanceB));
+      intervals[count++] = length;
+    }
+    // sort the intervals on start
+    for (int j = 2; j < count; j += 2) {
+      for (int k = j; k > 0 && intervals[k - 2] > intervals[k]; k -= 2) {
+        double swapStart = intervals[k];
+        double swapEnd = intervals[k + 1];
+        intervals[k] = intervals[k - 2];
+        intervals[k + 1] = intervals[k - 1];
+        intervals[k - 2] = swapStart;
+        intervals[k - 1] = swapEnd;
+      }
+    }
+    Edge key = originEdge;
+    double pieceStart = intervals[0];
+    double pieceEnd = intervals[1];
+    for (int j = 2; j <= count; j += 2) {
+      if (j < count && intervals[j] <= pieceEnd) {
+        pieceEnd = Math.max(pieceEnd, intervals[j + 1]);
+        continue;
+      }
+      serviceArea.put(key, new ServiceAreaEdge(originEdge, length,
+          pieceStart, pieceEnd, 0.0));
+      // Separate pieces of the origin edge each get their own key
+      key = new BasicEdge(originEdge.getNodeA(), originEdge.getNodeB());
+      if (j < count) {
+        pieceStart = intervals[j];
+        pieceEnd = intervals[j + 1];
+      }
+    }
+  }
+
+  private static double edgeLength(Edge edge) {
+    return ServiceAreaEdge.edgeLength(edge);
+  }
+}
@@ -29,7 +29,6 @@ import org.geotools.graph.path.Path;
 import org.geotools.graph.structure.Edge;
 import org.geotools.graph.structure.Node;
 import org.geotools.graph.structure.basic.BasicEdge;
-import org.geotools.graph.structure.basic.BasicNode;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -38,7 +37,6 @@ import org.slf4j.LoggerFactory;
 
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.linearref.LengthIndexedLine;
 
 /**
  * A Fork/Join Network service area generator using Bread First graph traversal
@@ -51,9 +49,9 @@ public class NetworkBufferFJ extends RecursiveAction {
   static final Logger LOGGER = LoggerFactory.getLogger(NetworkBufferFJ.class);
   private Map network;
   private Path currentPath;
+  private double currentLength;
   private Double distance;
   private Map serviceArea;
-  private static String distanceAttribute = "Distance";
 
   /**
    * Intialise inputs
@@ -69,8 +67,18 @@ public class NetworkBufferFJ extends RecursiveAction {
    */
   public NetworkBufferFJ(Map network, Path currentPath, Double distance,
       Map serviceArea) {
+    this(network, currentPath, pathLength(currentPath), distance, serviceArea);
+  }
+
+  /**
+   * Carries on from a path whose length is already known, each step adds the
+   * length of one edge rather than measuring the whole path again
+   */
+  private NetworkBufferFJ(Map network, Path currentPath, double currentLength,
+      Double distance, Map serviceArea) {
     this.network = network;
     this.currentPath = currentPath;
+    this.currentLength = currentLength;
     this.distance = distance;
     this.serviceArea = serviceArea;
   }
@@ -78,8 +86,8 @@ public class NetworkBufferFJ extends RecursiveAction {
   /**
    * Sets up the ForkJoinPool and then calls invoke to find service area
    * 
-   * @return A complete service area - set of edges that belong to paths with
-   *         maximum distance specified
+   * @return A complete service area - map of edges to ServiceAreaEdge records
+   *         for edges that belong to paths with maximum distance specified
    */
   public Map createBuffer() {
     // Get the available processors, processors==threads is probably best?
@@ -108,6 +116,7 @@ public class NetworkBufferFJ extends RecursiveAction {
       return;
     }
     List<Path> nextPaths = new ArrayList();
+    List<Double> nextLengths = new ArrayList<Double>();
     // List<NetworkBufferFJ> buffernators = new ArrayList();
     Node current = currentPath.getLast();
     List<Edge> graphEdges = (List<Edge>) network.get(current);
@@ -116,18 +125,21 @@ public class NetworkBufferFJ extends RecursiveAction {
       Path nextPath = currentPath.duplicate();// new Path();
       // nextPath.addEdges(currentPath.getEdges());
       if (nextPath.addEdge(graphEdge)) {
-        if (pathLength(nextPath) <= distance) { // if path + edge less/equal to
-                                                // distance
-          addWholeEdge(nextPath, nextPaths, graphEdge);
+        double edgeLength = ServiceAreaEdge.edgeLength(graphEdge);
+        if (currentLength + edgeLength <= distance) { // if path + edge
+                                                      // less/equal to distance
+          if (addWholeEdge(nextPath, nextPaths, graphEdge, edgeLength)) {
+            nextLengths.add(currentLength + edgeLength);
+          }
         } else {// else chop edge, append (path + chopped edge) to list of paths
-          addChoppedEdge(graphEdge);
+          addChoppedEdge(graphEdge, edgeLength);
         }
       }
     }
     LOGGER.trace("Nextpaths For path {} - {}",currentPath, nextPaths.size());
-    for (Path nextPath : nextPaths) {
-      NetworkBufferFJ nbfj = new NetworkBufferFJ(network, nextPath, distance,
-          serviceArea);
+    for (int i = 0; i < nextPaths.size(); i++) {
+      NetworkBufferFJ nbfj = new NetworkBufferFJ(network, nextPaths.get(i),
+          nextLengths.get(i), distance, serviceArea);
       // buffernators.add(nbfj);
       this.serviceArea = nbfj.createBuffer();
     }
@@ -137,11 +149,14 @@ public class NetworkBufferFJ extends RecursiveAction {
     // }
   }
 
-  private void addWholeEdge(Path nextPath, List<Path> nextPaths, Edge graphEdge) {
-    if ((addEdge(serviceArea, currentPath, graphEdge)
+  private boolean addWholeEdge(Path nextPath, List<Path> nextPaths,
+      Edge graphEdge, double edgeLength) {
+    if ((addEdge(serviceArea, currentLength, graphEdge, edgeLength)
         && (nextPath.getLast().getDegree() > 1) && nextPath.isValid())) {
       nextPaths.add(nextPath);
+      return true;
     }
+    return false;
     // if (nextPath.isValid()) { //check if valid path (no repeated nodes)
     // if (nextPath.getLast().getDegree() == 1) {
     // addEdge(serviceArea, currentPath, graphEdge); //add the path if it is
@@ -158,187 +173,60 @@ public class NetworkBufferFJ extends RecursiveAction {
     // }
   }
 
-  private void addChoppedEdge(Edge graphEdge) {
+  private void addChoppedEdge(Edge graphEdge, double edgeLength) {
+    Node current = currentPath.getLast();
+    double pathLength = currentLength;
     if (graphEdge.getNodeA().equals(graphEdge.getNodeB())) {
-
       // looped feature, chopped edges from each direction
-      Edge choppedEdgeA = chopEdge(currentPath, graphEdge, distance
-          - pathLength(currentPath));
-      // graphEdge.reverse();
-      Edge choppedEdgeB = chopEdgeBackwards(currentPath, graphEdge, distance
-          - pathLength(currentPath));
-      Path newPathA = currentPath.duplicate();
-      Path newPathB = currentPath.duplicate();
-      if (newPathA.addEdge(choppedEdgeA)) {
-        addNewEdge(serviceArea, currentPath, graphEdge, choppedEdgeA);
-      }
-      if (newPathB.addEdge(choppedEdgeB)) {
-        addNewEdge(serviceArea, currentPath, graphEdge, choppedEdgeB);
-      }
+      addNewEdge(serviceArea, graphEdge, ServiceAreaEdge.chopped(graphEdge,
+          edgeLength, current, distance - pathLength, pathLength));
+      addNewEdge(serviceArea, graphEdge, ServiceAreaEdge.choppedBackwards(
+          graphEdge, edgeLength, current, distance - pathLength, pathLength));
     } else {
-
-      Edge choppedEdge = chopEdge(currentPath, graphEdge, distance
-          - pathLength(currentPath));
-      // LOGGER.debug("Chopped edge should be {} long",distance -
-      // pathLength(currentPath));
-      Path newPath = currentPath.duplicate();
-      if (newPath.addEdge(choppedEdge)) {
-        addNewEdge(serviceArea, currentPath, graphEdge, choppedEdge);
-      }
-      // LOGGER.debug("New path length: {}", pathLength(newPath));
+      addNewEdge(serviceArea, graphEdge, ServiceAreaEdge.chopped(graphEdge,
+          edgeLength, current, distance - pathLength, pathLength));
     }
   }
 
-  private static boolean addEdge(Map serviceArea, Path path, Edge newEdge) {
-    Double pathLength = pathLength(path);
-    SimpleFeature graphFeature = ((SimpleFeature) newEdge.getObject());
-    SimpleFeatureType edgeType = createEdgeFeatureType(graphFeature.getType()
-        .getCoordinateReferenceSystem());
-    SimpleFeature edgeFeature = buildFeatureFromGeometry(edgeType,
-        (Geometry) graphFeature.getDefaultGeometry());
-    if (serviceArea.containsKey(newEdge)) {
-      SimpleFeature existingFeature = (SimpleFeature) serviceArea.get(newEdge);
-      Double minimalDistance = (Double) existingFeature
-          .getAttribute(distanceAttribute);
-      if (minimalDistance > pathLength) {
-        edgeFeature.setAttribute(distanceAttribute, pathLength);
-        serviceArea.put(newEdge, edgeFeature);
-        // LOGGER.debug("Adding edge {} - minimal distance {}",newEdge,pathLength);
-        return true;
-      } else {
-        // LOGGER.debug("NOT Adding edge {} - minimaldistance {}",newEdge,minimalDistance);
-        return false;
-      }
-    } else {
-      edgeFeature.setAttribute(distanceAttribute, pathLength);
-      serviceArea.put(newEdge, edgeFeature);
-      // LOGGER.debug("Adding edge {} - minimal distance {}",newEdge,pathLength);
+  private static boolean addEdge(Map serviceArea, double pathLength,
+      Edge newEdge, double edgeLength) {
+    ServiceAreaEdge existing = (ServiceAreaEdge) serviceArea.get(newEdge);
+    if (existing == null || existing.getDistance() > pathLength) {
+      serviceArea.put(newEdge, ServiceAreaEdge.whole(newEdge, edgeLength,
+          pathLength));
       return true;
     }
+    return false;
   }
 
-  private static void addNewEdge(Map serviceArea, Path path, Edge graphEdge,
-      Edge newEdge) {
-    Double pathLength = pathLength(path);
-    if (serviceArea.containsKey(graphEdge)) {
-      SimpleFeature existingFeature = (SimpleFeature) serviceArea
-          .get(graphEdge);
-      // Double currentPathLength = (Double)
-      // existingFeature.getAttribute(distanceAttribute);
-
-      Geometry existingGeometry = (Geometry) existingFeature
-          .getDefaultGeometry();
-      Geometry newGeometry = (Geometry) ((SimpleFeature) newEdge.getObject())
-          .getDefaultGeometry();
-
-      SimpleFeature newFeature = buildFeatureFromGeometry(
-          existingFeature.getType(), newGeometry);
-      newFeature.setAttribute(distanceAttribute, pathLength);
-
-      if (newGeometry.getLength() >= existingGeometry.getLength()) {
-        if (newGeometry.contains(existingGeometry)) {
-          serviceArea.put(graphEdge, newFeature);
-        } else {
-          serviceArea.put(newEdge, newFeature);
-        }
-      }
-
-    } else {
-      SimpleFeature newFeature = (SimpleFeature) newEdge.getObject();
-      Geometry newGeometry = (Geometry) newFeature.getDefaultGeometry();
-      SimpleFeatureType edgeType = createEdgeFeatureType(newFeature.getType()
-          .getCoordinateReferenceSystem());
-      newFeature = buildFeatureFromGeometry(edgeType, newGeometry);
-      newFeature.setAttribute(distanceAttribute, pathLength);
-
-      serviceArea.put(graphEdge, newFeature);
-
-    }
-  }
-
-  private static Edge chopEdge(Path path, Edge edge, Double length) {
-    Node node = path.getLast();
-    Node newNode = new BasicNode();
-    Edge newEdge = new BasicEdge(node, newNode);
-
-    Geometry lineGeom = ((Geometry) ((SimpleFeature) edge.getObject())
-        .getDefaultGeometry());
-    // lineGeom = Densifier.densify(lineGeom, 1); //1 metre tolerance
-    LengthIndexedLine line = new LengthIndexedLine(lineGeom);
-
-    if (node.equals(edge.getNodeA())) {
-      Geometry newLine = line.extractLine(line.getStartIndex(), length);
-      SimpleFeature newFeature = buildFeatureFromGeometry(
-          ((SimpleFeature) edge.getObject()).getType(), newLine);
-      newEdge.setObject(newFeature);
-      // LOGGER.debug("...To {}",newLine.getLength());
-      // Double delta = 1500.0 - pathLength(path) - newLine.getLength();
-      // LOGGER.debug("Delta Length A: " + delta);//(newLine.getLength() -
-      // length) );
-      return newEdge;
-    } else if (node.equals(edge.getNodeB())) {
-      Geometry newLine = line.extractLine(line.getEndIndex(), -length);
-      SimpleFeature newFeature = buildFeatureFromGeometry(
-          ((SimpleFeature) edge.getObject()).getType(), newLine);
-      newEdge.setObject(newFeature);
-      // LOGGER.debug("...To {}",newLine.getLength());
-      // Double delta = 1500.0 - pathLength(path) - newLine.getLength();
-      // LOGGER.debug("Delta Length B: " + delta);//(newLine.getLength() -
-      // length) );
-      return newEdge;
-    } else {
-      LOGGER.error("Failed To Cut Edge");
-      return null;
+  private static void addNewEdge(Map serviceArea, Edge graphEdge,
+      ServiceAreaEdge choppedEdge) {
+    if (choppedEdge == null) {
+      return;
     }
-  }
-
-  private static Edge chopEdgeBackwards(Path path, Edge edge, Double length) {
-    Node node = path.getLast();
-    Node newNode = new BasicNode();
-    Edge newEdge = new BasicEdge(node, newNode);
-
-    Geometry lineGeom = ((Geometry) ((SimpleFeature) edge.getObject())
-        .getDefaultGeometry());
-    // lineGeom = Densifier.densify(lineGeom, 1); //1 metre tolerance
-    LengthIndexedLine line = new LengthIndexedLine(lineGeom);
-
-    if (node.equals(edge.getNodeA())) {
-      Geometry newLine = line.extractLine(line.getEndIndex(), -length);
-
-      SimpleFeature newFeature = buildFeatureFromGeometry(
-          ((SimpleFeature) edge.getObject()).getType(), newLine);
-      newEdge.setObject(newFeature);
-      // LOGGER.debug("...To {}",newLine.getLength());
-      // Double delta = 1500.0 - pathLength(path) - newLine.getLength();
-      // LOGGER.debug("Delta Length A: " + delta);//(newLine.getLength() -
-      // length) );
-      return newEdge;
-    } else if (node.equals(edge.getNodeB())) {
-      Geometry newLine = line.extractLine(line.getStartIndex(), length);
-      SimpleFeature newFeature = buildFeatureFromGeometry(
-          ((SimpleFeature) edge.getObject()).getType(), newLine);
-      newEdge.setObject(newFeature);
-      // LOGGER.debug("...To {}",newLine.getLength());
-      // Double delta = 1500.0 - pathLength(path) - newLine.getLength();
-      // LOGGER.debug("Delta Length B: " + delta);//(newLine.getLength() -
-      // length) );
-      return newEdge;
-    } else {
-      LOGGER.error("Failed To Cut Edge");
-      return null;
+    ServiceAreaEdge existing = (ServiceAreaEdge) serviceArea.get(graphEdge);
+    if (existing == null) {
+      serviceArea.put(graphEdge, choppedEdge);
+    } else if (choppedEdge.getLength() >= existing.getLength()) {
+      if (choppedEdge.contains(existing)) {
+        serviceArea.put(graphEdge, choppedEdge);
+      } else {
+        // a different part of the same edge, it gets its own key
+        serviceArea.put(new BasicEdge(graphEdge.getNodeA(),
+            graphEdge.getNodeB()), choppedEdge);
+      }
     }
   }
 
-  private static Double pathLength(Path path) {
-    Double length = 0.0;
+  private static double pathLength(Path path) {
+    double length = 0.0;
     for (Edge edge : (List<Edge>) path.getEdges()) {
-      length += ((Geometry) ((SimpleFeature) edge.getObject())
-          .getDefaultGeometry()).getLength();
+      length += ServiceAreaEdge.edgeLength(edge);
     }
     return length;
   }
 
-  private static SimpleFeature buildFeatureFromGeometry(
+  static SimpleFeature buildFeatureFromGeometry(
       SimpleFeatureType featureType, Geometry geom) {
 
     SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
@@ -349,7 +237,7 @@ public class NetworkBufferFJ extends RecursiveAction {
     return sfb.buildFeature(null);
   }
 
-  private static SimpleFeatureType createEdgeFeatureType(
+  static SimpleFeatureType createEdgeFeatureType(
       CoordinateReferenceSystem crs) {
 
     SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
@@ -16,6 +16,11 @@
  */
 package org.mccaughey.connectivity;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
 import oms3.annotations.Description;
 import oms3.annotations.Execute;
 import oms3.annotations.In;
@@ -26,9 +31,13 @@ import org.geotools.data.DataUtilities;
 import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
+import org.mccaughey.utilities.FeatureSink;
+import org.mccaughey.utilities.GeoJSONFeatureSink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  * An OMS Wrapper for Network Buffer generation
  * 
@@ -46,12 +55,19 @@ public class NetworkBufferOMS {
   @Name("Road Network")
   @Description("The network data set to generate service areas from")
   public SimpleFeatureSource network;
+  /**
+   * A prepared network file, used instead of the road network
+   */
+  @In
+  @Name("Network file")
+  @Description("A prepared network file (see netexport) to generate service areas from instead of the road network")
+  public File networkFile;
   /**
    * The points of interest
    */
   @In
   @Name("Points of Interest")
-  @Description("Sample point data set to act as service area origins")
+  @Description("Sample points (or polygons) to act as service area origins")
   public SimpleFeatureSource points;
   /**
    * The network distance for the service areas (maximum walk distance)
@@ -60,6 +76,14 @@ public class NetworkBufferOMS {
   @Name("Maximum walk distance")
   @Description("The maximum distance to traverse the network in all possible directions")
   public Double distance;
+  /**
+   * Several network distances to generate service areas for at once
+   * (optional, used instead of distance)
+   */
+  @In
+  @Name("Walk distances")
+  @Description("Generate a service area for each of these distances from a single traversal of the network")
+  public List<Double> distances;
   /**
    * The buffer size
    */
@@ -67,6 +91,71 @@ public class NetworkBufferOMS {
   @Name("Buffer size")
   @Description("Trim service area neighbourhoods to within X metres of network lines")
   public Double bufferSize;
+  /**
+   * The number of service areas to cache (optional, no caching if not set)
+   */
+  @In
+  @Name("Service area cache size")
+  @Description("Reuse service areas for points that snap to nearly the same place on the network, keeping up to this many")
+  public Integer cacheSize;
+  /**
+   * The distance along the network within which points share a cached service
+   * area
+   */
+  @In
+  @Name("Service area cache tolerance")
+  @Description("Points snapping within about this many metres of each other on the same road share a service area")
+  public Double cacheTolerance = 5.0;
+  /**
+   * The furthest a polygon origin's network entry points can be from it
+   */
+  @In
+  @Name("Polygon entry tolerance")
+  @Description("Polygon origins (eg parcels, parks) are entered from every road within this distance of them")
+  public Double entryTolerance;
+  /**
+   * The size of network tiles (optional, the whole network around the points
+   * is prepared at once if not set)
+   */
+  @In
+  @Name("Network tile size")
+  @Description("Prepare the network in square tiles of this width, for networks too large to prepare at once (not with a network file)")
+  public Double tileSize;
+  /**
+   * The memory to keep prepared network tiles in
+   */
+  @In
+  @Name("Network tile memory (MB)")
+  @Description("Prepared network tiles are dropped, least recently used first, to keep within about this much memory")
+  public Integer tileMemory = 512;
+  /**
+   * Whether to process the points in spatial order
+   */
+  @In
+  @Name("Spatial order")
+  @Description("Process points along a Hilbert curve so that neighbouring points are processed together")
+  public Boolean spatialOrder = Boolean.FALSE;
+  /**
+   * Whether to count the connections reached within each buffer
+   */
+  @In
+  @Name("Connectivity")
+  @Description("Add Connectivity, Area and Connections attributes to each buffer, counting the intersections within the buffer from the network already loaded, without a separate connectivity step")
+  public Boolean connectivity = Boolean.FALSE;
+  /**
+   * Whether to traverse the network from each point in parallel
+   */
+  @In
+  @Name("Parallel traversal")
+  @Description("Traverse the network from each point, and buffer its service area, on all threads at once rather than one thread per point, faster for a few points on a large network")
+  public Boolean parallelTraversal = Boolean.FALSE;
+  /**
+   * A GeoJSON file to write the buffers to as they are generated
+   */
+  @In
+  @Name("Output file")
+  @Description("Write the buffers to this GeoJSON file as they are generated rather than holding them all in memory, the resulting regions are then not set")
+  public File outputFile;
 
   /**
    * The resulting regions url
@@ -74,6 +163,12 @@ public class NetworkBufferOMS {
   @Out
   @Name("Resulting regions")
   public SimpleFeatureSource regions;
+  /**
+   * The GeoJSON file the buffers were written to, if an output file was given
+   */
+  @Out
+  @Name("Resulting regions file")
+  public File regionsFile;
 
   @Out
   @Name("The original road network")
@@ -93,23 +188,63 @@ public class NetworkBufferOMS {
       SimpleFeatureSource networkSource = network;
       SimpleFeatureSource pointsSource = points;
 
-      assert (network.getSchema().getCoordinateReferenceSystem() != null);
-      //LOGGER.debug("Coordinate Units: {}", network.getSchema()
-      //    .getCoordinateReferenceSystem().getCoordinateSystem().getAxis(0)
-      //    .getUnit().toString());
-      assert (network.getSchema().getCoordinateReferenceSystem()
-          .getCoordinateSystem().getAxis(0).getUnit().toString().equals("m"));
+      if (networkSource != null) {
+        assert (network.getSchema().getCoordinateReferenceSystem() != null);
+        //LOGGER.debug("Coordinate Units: {}", network.getSchema()
+        //    .getCoordinateReferenceSystem().getCoordinateSystem().getAxis(0)
+        //    .getUnit().toString());
+        assert (network.getSchema().getCoordinateReferenceSystem()
+            .getCoordinateSystem().getAxis(0).getUnit().toString().equals("m"));
 
-      LOGGER.debug("Received network data containing {} features",
-          networkSource.getCount(new Query()));
+        LOGGER.debug("Received network data containing {} features",
+            networkSource.getCount(new Query()));
+      }
       LOGGER.debug("Received points data containing {} features",
           pointsSource.getCount(new Query()));
 
       LOGGER.debug("Points Source CRS: {}", pointsSource.getSchema()
           .getCoordinateReferenceSystem());
-      LOGGER.info("Generate network service areas...");
-      NetworkBufferBatch nbb = new NetworkBufferBatch(networkSource,
-          pointsSource.getFeatures(), distance, bufferSize);
+      NetworkBufferBatch nbb;
+      if (tileSize != null) {
+        // tiles are prepared as the points reach them
+        TiledNetworkCache tiles = new TiledNetworkCache(networkSource,
+            tileSize, networkReach(), tileMemory * 1024L * 1024L, Runtime
+                .getRuntime().availableProcessors());
+        LOGGER.info("Generate network service areas...");
+        if (distances != null && !distances.isEmpty()) {
+          nbb = new NetworkBufferBatch(tiles, pointsSource.getFeatures(),
+              distances, bufferSize);
+        } else {
+          nbb = new NetworkBufferBatch(tiles, pointsSource.getFeatures(),
+              distance, bufferSize);
+        }
+      } else {
+        LOGGER.info("Preparing network...");
+        CompactNetwork compactNetwork = prepareNetwork(networkSource,
+            pointsSource);
+        LOGGER.info("Generate network service areas...");
+        if (distances != null && !distances.isEmpty()) {
+          nbb = new NetworkBufferBatch(compactNetwork,
+              pointsSource.getFeatures(), distances, bufferSize);
+        } else {
+          nbb = new NetworkBufferBatch(compactNetwork,
+              pointsSource.getFeatures(), distance, bufferSize);
+        }
+      }
+      nbb.setSpatialOrder(Boolean.TRUE.equals(spatialOrder));
+      nbb.setConnectivity(Boolean.TRUE.equals(connectivity));
+      nbb.setParallelTraversal(Boolean.TRUE.equals(parallelTraversal));
+      if (entryTolerance != null) {
+        nbb.setEntryTolerance(entryTolerance);
+      }
+      if (cacheSize != null && cacheSize > 0) {
+        nbb.setCache(new ServiceAreaCache(cacheSize, cacheTolerance));
+      }
+      if (outputFile != null) {
+        writeBuffers(nbb);
+        networkOut = network;
+        return;
+      }
       SimpleFeatureCollection buffers = nbb.createBuffers();
 
       if (buffers.isEmpty()) {
@@ -131,9 +266,70 @@ public class NetworkBufferOMS {
     }
   }
 
+  /**
+   * Streams the buffers to the output file, so only the buffers in progress
+   * are held in memory however many points there are
+   */
+  private void writeBuffers(NetworkBufferBatch nbb) throws IOException {
+    FeatureSink sink = new GeoJSONFeatureSink(outputFile);
+    int written;
+    try {
+      written = nbb.createBuffers(sink);
+    } finally {
+      sink.close();
+    }
+    if (written == 0) {
+      throw new IllegalStateException(
+          "No buffers were generated. Aborting process");
+    }
+    regionsFile = outputFile;
+    LOGGER.info("Wrote {} network service areas to {}", written, outputFile);
+  }
+
+  /**
+   * Loads and indexes the part of the network that can be reached from the
+   * points once, rather than once per point, and contracts chains of degree-2
+   * nodes so the traversals have fewer nodes to step through. A network file
+   * has already been prepared and is just mapped in.
+   */
+  private CompactNetwork prepareNetwork(SimpleFeatureSource networkSource,
+      SimpleFeatureSource pointsSource) throws IOException {
+    if (networkFile != null) {
+      return NetworkFile.read(networkFile);
+    }
+    Envelope extent = pointsSource.getBounds();
+    if (extent == null || extent.isNull()) {
+      return CompactNetwork.build(networkSource).contract();
+    }
+    extent = new Envelope(extent);
+    extent.expandBy(networkReach());
+    return CompactNetwork.build(networkSource, extent).contract();
+  }
+
+  /**
+   * How far from an origin its service area can need the network: a point
+   * snaps to an edge up to the walk distance plus the buffer size away (a
+   * polygon enters from edges up to the entry tolerance away, if that is
+   * further), walks the distance from there, and its buffer reaches the
+   * buffer size further
+   */
+  private double networkReach() {
+    double snap = Math.max(maximumDistance() + bufferSize,
+        entryTolerance != null ? entryTolerance
+            : NetworkBufferBatch.DEFAULT_ENTRY_TOLERANCE);
+    return snap + maximumDistance() + bufferSize;
+  }
+
+  private Double maximumDistance() {
+    if (distances != null && !distances.isEmpty()) {
+      return Collections.max(distances);
+    }
+    return distance;
+  }
+
   private void validateInputs() {
 
-    if (network == null) {
+    if (network == null && networkFile == null) {
       throw new IllegalArgumentException(
           "Network buffer error: A road network was not provided");
     }
@@ -143,7 +339,7 @@ public class NetworkBufferOMS {
           "Network buffer error: A set of points was not provided");
     }
 
-    if (distance == null) {
+    if (distance == null && (distances == null || distances.isEmpty())) {
       throw new IllegalArgumentException(
           "Network buffer error: A walking distance must be provided");
     }
@@ -152,5 +348,11 @@ public class NetworkBufferOMS {
       throw new IllegalArgumentException(
           "Network buffer error: A buffer size must be provided");
     }
+
+    if (tileSize != null && networkFile != null) {
+      // a network file is already prepared as a whole, it is never tiled
+      throw new IllegalArgumentException(
+          "Network buffer error: A network tile size can not be used with a network file");
+    }
   }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.File;
+import java.io.IOException;
+
+import oms3.annotations.Description;
+import oms3.annotations.Execute;
+import oms3.annotations.In;
+import oms3.annotations.Name;
+import oms3.annotations.Out;
+
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An OMS Wrapper for preparing a network once and saving it as a network
+ * file, which netbuffer and connectivity can then load instead of the road
+ * network
+ * 
+ * @author amacaulay
+ */
+@Name("netexport")
+@Description("Prepares a road network and saves it as a network file for reuse")
+public class NetworkExportOMS {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(NetworkExportOMS.class);
+  /**
+   * The road network to prepare
+   */
+  @In
+  @Name("Road Network")
+  @Description("The network data set to prepare")
+  public SimpleFeatureSource network;
+  /**
+   * The file to write the prepared network to
+   */
+  @In
+  @Name("Network file")
+  @Description("The file to save the prepared network to")
+  public File networkFile;
+
+  /**
+   * The written network file
+   */
+  @Out
+  @Name("Prepared network file")
+  public File preparedNetwork;
+
+  /**
+   * Builds and contracts the network and writes it to the network file
+   */
+  @Execute
+  public void run() {
+
+    validateInputs();
+
+    try {
+      LOGGER.info("Preparing network...");
+      CompactNetwork compactNetwork = CompactNetwork.build(network).contract();
+      LOGGER.info("Writing {} network edges to {}",
+          compactNetwork.getEdgeCount(), networkFile);
+      NetworkFile.write(compactNetwork, networkFile);
+      preparedNetwork = networkFile;
+    } catch (IOException e) {
+      LOGGER.error(e.getMessage());
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void validateInputs() {
+
+    if (network == null) {
+      throw new IllegalArgumentException(
+          "Network export error: A road network was not provided");
+    }
+
+    if (networkFile == null) {
+      throw new IllegalArgumentException(
+          "Network export error: A network file was not provided");
+    }
+  }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+
+/**
+ * Reads and writes a CompactNetwork as a versioned binary file, so a prepared
+ * network (eg a whole state, contracted) can be reused between runs without
+ * re-reading the source data. The file is a header (including the geometry
+ * factory's precision model and SRID) followed by the network arrays - node
+ * coordinates, edge topology, edge lengths, edge envelopes, adjacency, packed
+ * edge coordinates and their measures, and the snapping index's edge order -
+ * all big endian. Reading maps the file a segment (of at most 1GB) at a time
+ * and bulk copies each array, so nothing is parsed or recomputed and files
+ * over 2GB can be read.
+ *
+ * @author amacaulay
+ */
+public final class NetworkFile {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(NetworkFile.class);
+  /**
+   * "WKNT"
+   */
+  private static final int MAGIC = 0x574B4E54;
+  /**
+   * The current format version, files of other versions can not be read
+   */
+  public static final int VERSION = 2;
+  private static final int FLOATING = 0;
+  private static final int FLOATING_SINGLE = 1;
+  private static final int FIXED = 2;
+  private static final long SEGMENT_BYTES = 1L << 30;
+
+  private NetworkFile() {
+  }
+
+  /**
+   * Writes a network to a file (will overwrite existing)
+   *
+   * @param network
+   *          The network to write
+   * @param file
+   *          The file to write to
+   * @throws IOException
+   */
+  public static void write(CompactNetwork network, File file)
+      throws IOException {
+    int nodeCount = network.getNodeCount();
+    int edgeCount = network.getEdgeCount();
+    int coordinateCount = edgeCount == 0 ? 0 : network
+        .getCoordinateEnd(edgeCount - 1);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(nodeCount);
+      out.writeInt(edgeCount);
+      out.writeInt(coordinateCount);
+      CoordinateReferenceSystem crs = network.getCoordinateReferenceSystem();
+      out.writeUTF(crs == null ? "" : crs.toWKT());
+      GeometryFactory factory = network.getGeometryFactory();
+      PrecisionModel precision = factory.getPrecisionModel();
+      if (precision.getType() == PrecisionModel.FIXED) {
+        out.writeInt(FIXED);
+      } else if (precision.getType() == PrecisionModel.FLOATING_SINGLE) {
+        out.writeInt(FLOATING_SINGLE);
+      } else {
+        out.writeInt(FLOATING);
+      }
+      out.writeDouble(precision.getScale());
+      out.writeInt(factory.getSRID());
+
+      for (int n = 0; n < nodeCount; n++) {
+        out.writeDouble(network.getNodeX(n));
+      }
+      for (int n = 0; n < nodeCount; n++) {
+        out.writeDouble(network.getNodeY(n));
+      }
+      for (int e = 0; e < edgeCount; e++) {
+        out.writeInt(network.getNodeA(e));
+      }
+      for (int e = 0; e < edgeCount; e++) {
+        out.writeInt(network.getNodeB(e));
+      }
+      for (int e = 0; e < edgeCount; e++) {
+        out.writeDouble(network.getEdgeLength(e));
+      }
+      for (int e = 0; e < edgeCount; e++) {
+        Envelope envelope = network.getEdgeEnvelope(e);
+        out.writeDouble(envelope.getMinX());
+        out.writeDouble(envelope.getMinY());
+        out.writeDouble(envelope.getMaxX());
+        out.writeDouble(envelope.getMaxY());
+      }
+      for (int n = 0; n < nodeCount; n++) {
+        out.writeInt(network.getAdjacencyStart(n));
+      }
+      out.writeInt(2 * edgeCount);
+      for (int i = 0; i < 2 * edgeCount; i++) {
+        out.writeInt(network.getAdjacentEdge(i));
+      }
+      for (int e = 0; e < edgeCount; e++) {
+        out.writeInt(network.getCoordinateStart(e));
+      }
+      out.writeInt(coordinateCount);
+      for (int c = 0; c < coordinateCount; c++) {
+        out.writeDouble(network.getX(c));
+        out.writeDouble(network.getY(c));
+      }
+      for (int c = 0; c < coordinateCount; c++) {
+        out.writeDouble(network.getMeasure(c));
+      }
+      for (int edge : network.getSnapIndex().getOrder()) {
+        out.writeInt(edge);
+      }
+    } finally {
+      out.close();
+    }
+    LOGGER.debug("Wrote network with {} nodes and {} edges to {}",
+        new Object[] { nodeCount, edgeCount, file });
+  }
+
+  /**
+   * Reads a network written by write
+   *
+   * @param file
+   *          The network file
+   * @return The network
+   * @throws IOException
+   *           If the file can not be read or is not a network file this
+   *           version understands
+   */
+  public static CompactNetwork read(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      MappedInput in = new MappedInput(raf.getChannel());
+      if (in.getInt() != MAGIC) {
+        throw new IOException(file + " is not a network file");
+      }
+      int version = in.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported network file version " + version
+            + " in " + file + ", export the network again");
+      }
+      int nodeCount = in.getInt();
+      int edgeCount = in.getInt();
+      int coordinateCount = in.getInt();
+      CoordinateReferenceSystem crs = readCRS(in);
+      GeometryFactory geometryFactory = readGeometryFactory(in);
+
+      double[] nodeX = in.getDoubles(nodeCount);
+      double[] nodeY = in.getDoubles(nodeCount);
+      int[] edgeNodeA = in.getInts(edgeCount);
+      int[] edgeNodeB = in.getInts(edgeCount);
+      double[] edgeLength = in.getDoubles(edgeCount);
+      double[] edgeEnvelopes = in.getDoubles(4 * edgeCount);
+      int[] adjacencyOffsets = in.getInts(nodeCount + 1);
+      int[] adjacency = in.getInts(2 * edgeCount);
+      int[] coordinateOffsets = in.getInts(edgeCount + 1);
+      double[] coordinates = in.getDoubles(2 * coordinateCount);
+      double[] measures = in.getDoubles(coordinateCount);
+      int[] snapOrder = in.getInts(edgeCount);
+
+      LOGGER.debug("Read network with {} nodes and {} edges from {}",
+          new Object[] { nodeCount, edgeCount, file });
+      return new CompactNetwork(nodeX, nodeY, edgeNodeA, edgeNodeB,
+          coordinateOffsets, coordinates, measures, edgeLength, edgeEnvelopes,
+          new int[][] { adjacencyOffsets, adjacency }, snapOrder,
+          geometryFactory, crs);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static CoordinateReferenceSystem readCRS(MappedInput in)
+      throws IOException {
+    byte[] wkt = in.getBytes(in.getShort() & 0xFFFF);
+    if (wkt.length == 0) {
+      return null;
+    }
+    try {
+      return CRS.parseWKT(new String(wkt, "UTF-8"));
+    } catch (FactoryException e) {
+      throw new IOException("Failed to read network CRS: " + e.getMessage());
+    }
+  }
+
+  private static GeometryFactory readGeometryFactory(MappedInput in)
+      throws IOException {
+    int type = in.getInt();
+    double scale = in.getDouble();
+    int srid = in.getInt();
+    PrecisionModel precision;
+    if (type == FIXED) {
+      precision = new PrecisionModel(scale);
+    } else if (type == FLOATING_SINGLE) {
+      precision = new PrecisionModel(PrecisionModel.FLOATING_SINGLE);
+    } else {
+      precision = new PrecisionModel();
+    }
+    return new GeometryFactory(precision, srid);
+  }
+
+  /**
+   * Reads a file through a window mapped a segment at a time, a single
+   * mapping can not be larger than 2GB
+   */
+  private static final class MappedInput {
+    private final FileChannel channel;
+    private final long size;
+    private long start;
+    private MappedByteBuffer segment;
+
+    MappedInput(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+      map(0);
+    }
+
+    private void map(long at) throws IOException {
+      start = at;
+      segment = channel.map(FileChannel.MapMode.READ_ONLY, at, Math.min(
+          SEGMENT_BYTES, size - at));
+    }
+
+    /**
+     * @return The window, moved on if need be so at least the given number of
+     *         bytes remain in it
+     */
+    private MappedByteBuffer window(int bytes) throws IOException {
+      if (segment.remaining() < bytes) {
+        long at = start + segment.position();
+        if (at + bytes > size) {
+          throw new EOFException("Network file is truncated");
+        }
+        map(at);
+      }
+      return segment;
+    }
+
+    int getInt() throws IOException {
+      return window(4).getInt();
+    }
+
+    short getShort() throws IOException {
+      return window(2).getShort();
+    }
+
+    double getDouble() throws IOException {
+      return window(8).getDouble();
+    }
+
+    byte[] getBytes(int count) throws IOException {
+      byte[] values = new byte[count];
+      window(count).get(values);
+      return values;
+    }
+
+    double[] getDoubles(int count) throws IOException {
+      double[] values = new double[count];
+      int done = 0;
+      while (done < count) {
+        MappedByteBuffer buffer = window(8);
+        int n = Math.min(count - done, buffer.remaining() / 8);
+        buffer.asDoubleBuffer().get(values, done, n);
+        buffer.position(buffer.position() + 8 * n);
+        done += n;
+      }
+      return values;
+    }
+
+    int[] getInts(int count) throws IOException {
+      int[] values = new int[count];
+      int done = 0;
+      while (done < count) {
+        MappedByteBuffer buffer = window(4);
+        int n = Math.min(count - done, buffer.remaining() / 4);
+        buffer.asIntBuffer().get(values, done, n);
+        buffer.position(buffer.position() + 4 * n);
+        done += n;
+      }
+      return values;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+/**
+ * A location on a CompactNetwork - an edge and a distance along it from node A
+ *
+ * @author amacaulay
+ */
+public final class NetworkLocation {
+
+  private final int edge;
+  private final double offset;
+  private final double snapDistance;
+
+  /**
+   * @param edge
+   *          The edge id
+   * @param offset
+   *          The distance along the edge geometry from its start
+   * @param snapDistance
+   *          The distance moved to snap onto the edge
+   */
+  public NetworkLocation(int edge, double offset, double snapDistance) {
+    this.edge = edge;
+    this.offset = offset;
+    this.snapDistance = snapDistance;
+  }
+
+  /**
+   * @return The edge id
+   */
+  public int getEdge() {
+    return edge;
+  }
+
+  /**
+   * @return The distance along the edge geometry from its start
+   */
+  public double getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return The distance moved to snap onto the edge
+   */
+  public double getSnapDistance() {
+    return snapDistance;
+  }
+
+  @Override
+  public String toString() {
+    return "NetworkLocation[edge=" + edge + ", offset=" + offset + "]";
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Arrays;
+
+/**
+ * An indexed binary min-heap of int node ids keyed by distance, backed by
+ * primitive arrays. Each node is held at most once, a shorter distance for a
+ * queued node moves it up the heap (decrease key).
+ *
+ * @author amacaulay
+ */
+final class NodeHeap {
+
+  private final int[] nodes;
+  private final double[] keys;
+  private final int[] positions;
+  private int size;
+
+  /**
+   * @param capacity
+   *          The number of node ids (ids must be less than capacity)
+   */
+  NodeHeap(int capacity) {
+    nodes = new int[capacity];
+    keys = new double[capacity];
+    positions = new int[capacity];
+    Arrays.fill(positions, -1);
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Adds a node, or lowers the key of a node that is already in the heap
+   */
+  void insertOrDecrease(int node, double key) {
+    int position = positions[node];
+    if (position < 0) {
+      position = size++;
+      nodes[position] = node;
+      keys[position] = key;
+      positions[node] = position;
+      siftUp(position);
+    } else if (key < keys[position]) {
+      keys[position] = key;
+      siftUp(position);
+    }
+  }
+
+  /**
+   * Removes the node with the smallest key
+   *
+   * @return The node id
+   */
+  int poll() {
+    int node = nodes[0];
+    positions[node] = -1;
+    size--;
+    if (size > 0) {
+      nodes[0] = nodes[size];
+      keys[0] = keys[size];
+      positions[nodes[0]] = 0;
+      siftDown(0);
+    }
+    return node;
+  }
+
+  /**
+   * Empties the heap, only touching the nodes still in it
+   */
+  void clear() {
+    for (int i = 0; i < size; i++) {
+      positions[nodes[i]] = -1;
+    }
+    size = 0;
+  }
+
+  private void siftUp(int position) {
+    int node = nodes[position];
+    double key = keys[position];
+    int current = position;
+    while (current > 0) {
+      int parent = (current - 1) >>> 1;
+      if (keys[parent] <= key) {
+        break;
+      }
+      move(parent, current);
+      current = parent;
+    }
+    place(node, key, current);
+  }
+
+  private void siftDown(int position) {
+    int node = nodes[position];
+    double key = keys[position];
+    int current = position;
+    int half = size >>> 1;
+    while (current < half) {
+      int child = 2 * current + 1;
+      int right = child + 1;
+      if (right < size && keys[right] < keys[child]) {
+        child = right;
+      }
+      if (key <= keys[child]) {
+        break;
+      }
+      move(child, current);
+      current = child;
+    }
+    place(node, key, current);
+  }
+
+  private void move(int from, int to) {
+    nodes[to] = nodes[from];
+    keys[to] = keys[from];
+    positions[nodes[to]] = to;
+  }
+
+  private void place(int node, double key, int position) {
+    nodes[position] = node;
+    keys[position] = key;
+    positions[node] = position;
+  }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jsr166y.ForkJoinPool;
+import jsr166y.ForkJoinTask;
+import jsr166y.RecursiveAction;
+
+/**
+ * A parallel (delta-stepping) single source traversal of a CompactNetwork, for
+ * service areas large enough that one traversal is worth spreading over
+ * several cores. Nodes are kept in buckets of width delta by distance, the
+ * nodes of the lowest bucket are relaxed together by ForkJoin tasks, and a
+ * bucket is emptied (relaxing again any node whose distance drops while still
+ * in it) before the next is started. Distances are held as the bits of the
+ * double in an AtomicLongArray and only ever lowered by compare-and-set, so
+ * relaxations from different threads need no locks. The final distances are
+ * the shortest path distances, the same as the sequential traversal finds.
+ * The per node arrays are kept by the network and reused, only the nodes a
+ * traversal reaches are cleared after it (by reset), so a query costs the size
+ * of the part of the network it reaches rather than the whole network.
+ *
+ * @author amacaulay
+ */
+final class ParallelTraversal {
+
+  private static final int RELAX_THRESHOLD = 256;
+  private static final int MAX_BUCKETS = 1 << 16;
+  private static final int NOT_LOWERED = 0;
+  private static final int LOWERED = 1;
+  private static final int REACHED = 2;
+  private static final long UNREACHED = Double
+      .doubleToLongBits(Double.POSITIVE_INFINITY);
+  private final CompactNetwork network;
+  private final double distance;
+  private final double delta;
+  private final State state;
+  private final AtomicLongArray distances;
+  private final NodeBag[] buckets;
+  private final NodeBag touched = new NodeBag();
+
+  /**
+   * @param network
+   *          The network to traverse
+   * @param distance
+   *          The maximum distance to traverse
+   * @param delta
+   *          The width of the distance buckets, about the mean edge length
+   *          works well. A delta that is not positive (eg the mean of no
+   *          edges) uses a single bucket, and a delta so small it would need
+   *          more than 65536 buckets is widened.
+   */
+  ParallelTraversal(CompactNetwork network, double distance, double delta) {
+    this.network = network;
+    this.distance = distance;
+    double width = delta > 0 ? delta : Math.max(distance, Double.MIN_NORMAL);
+    double bands = Math.floor(distance / width) + 1;
+    if (bands > MAX_BUCKETS) {
+      width = distance / (MAX_BUCKETS - 1);
+      bands = MAX_BUCKETS;
+    }
+    this.delta = width;
+    // buckets are only created once a node is put in them
+    this.buckets = new NodeBag[(int) bands];
+    this.state = State.acquire(network.getNodeCount());
+    this.distances = state.distances;
+  }
+
+  /**
+   * Sets the starting distance of a node, before traversing
+   */
+  void seed(int node, double d) {
+    if (d > distance) {
+      return;
+    }
+    int result = lower(node, d);
+    if (result == REACHED) {
+      touched.add(node);
+    }
+    if (result != NOT_LOWERED) {
+      add(bucket(d), node);
+    }
+  }
+
+  /**
+   * Finds the distance to every node within the maximum distance of the seeds
+   */
+  void traverse(ForkJoinPool pool) {
+    for (int b = 0; b < buckets.length; b++) {
+      while (true) {
+        int[] frontier = takeFrontier(b);
+        if (frontier.length == 0) {
+          break;
+        }
+        ConcurrentLinkedQueue<NodeBag[]> results = new ConcurrentLinkedQueue<NodeBag[]>();
+        RelaxTask relax = new RelaxTask(frontier, 0, frontier.length, results);
+        if (ForkJoinTask.getPool() == pool) {
+          // already running on the pool (eg a batch of service areas)
+          relax.invoke();
+        } else {
+          pool.invoke(relax);
+        }
+        for (NodeBag[] result : results) {
+          NodeBag lowered = result[0];
+          for (int i = 0; i < lowered.size(); i++) {
+            int node = lowered.get(i);
+            add(bucket(getDistance(node)), node);
+          }
+          touched.addAll(result[1]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Clears the distances of the nodes this traversal reached and hands the
+   * arrays back for the next traversal to reuse
+   */
+  void reset() {
+    for (int i = 0; i < touched.size(); i++) {
+      distances.set(touched.get(i), UNREACHED);
+    }
+    state.release();
+  }
+
+  private void add(int b, int node) {
+    if (buckets[b] == null) {
+      buckets[b] = new NodeBag();
+    }
+    buckets[b].add(node);
+  }
+
+  /**
+   * Empties a bucket, leaving out nodes that have since moved to a lower
+   * bucket and nodes listed more than once
+   */
+  private int[] takeFrontier(int b) {
+    NodeBag bag = buckets[b];
+    if (bag == null) {
+      return new int[0];
+    }
+    int round = state.nextRound();
+    int[] queued = state.queued;
+    int[] frontier = new int[bag.size()];
+    int count = 0;
+    for (int i = 0; i < bag.size(); i++) {
+      int node = bag.get(i);
+      if (queued[node] != round && bucket(getDistance(node)) == b) {
+        queued[node] = round;
+        frontier[count++] = node;
+      }
+    }
+    buckets[b] = null;
+    return Arrays.copyOf(frontier, count);
+  }
+
+  private int bucket(double d) {
+    return Math.min(buckets.length - 1, (int) (d / delta));
+  }
+
+  double getDistance(int node) {
+    return Double.longBitsToDouble(distances.get(node));
+  }
+
+  int getTouchedCount() {
+    return touched.size();
+  }
+
+  int getTouched(int index) {
+    return touched.get(index);
+  }
+
+  /**
+   * Lowers the distance of a node if d is shorter, distances are never
+   * negative so their bits order the same way as the doubles
+   *
+   * @return NOT_LOWERED, LOWERED, or REACHED if the node had not been reached
+   *         before
+   */
+  private int lower(int node, double d) {
+    long bits = Double.doubleToLongBits(d);
+    while (true) {
+      long current = distances.get(node);
+      if (bits >= current) {
+        return NOT_LOWERED;
+      }
+      if (distances.compareAndSet(node, current, bits)) {
+        return current == UNREACHED ? REACHED : LOWERED;
+      }
+    }
+  }
+
+  private final class RelaxTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int[] frontier;
+    private final int start;
+    private final int end;
+    private final transient ConcurrentLinkedQueue<NodeBag[]> results;
+
+    RelaxTask(int[] frontier, int start, int end,
+        ConcurrentLinkedQueue<NodeBag[]> results) {
+      this.frontier = frontier;
+      this.start = start;
+      this.end = end;
+      this.results = results;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start > RELAX_THRESHOLD) {
+        int middle = (start + end) >>> 1;
+        invokeAll(new RelaxTask(frontier, start, middle, results),
+            new RelaxTask(frontier, middle, end, results));
+        return;
+      }
+      NodeBag lowered = new NodeBag();
+      NodeBag reached = new NodeBag();
+      for (int f = start; f < end; f++) {
+        int node = frontier[f];
+        double nodeDistance = getDistance(node);
+        for (int i = network.getAdjacencyStart(node); i < network
+            .getAdjacencyEnd(node); i++) {
+          int edge = network.getAdjacentEdge(i);
+          double nextDistance = nodeDistance + network.getEdgeLength(edge);
+          if (nextDistance <= distance) {
+            int next = network.getOtherNode(edge, node);
+            int result = lower(next, nextDistance);
+            if (result != NOT_LOWERED) {
+              lowered.add(next);
+            }
+            if (result == REACHED) {
+              reached.add(next);
+            }
+          }
+        }
+      }
+      results.add(new NodeBag[] { lowered, reached });
+    }
+  }
+
+  /**
+   * The per node arrays of parallel traversals, one set is kept per calling
+   * thread (grown to the largest network it has traversed, as TraversalState)
+   * and every node is left unreached between traversals
+   */
+  static final class State {
+    /**
+     * The bytes of working arrays a thread keeps per node of a network
+     */
+    static final int BYTES_PER_NODE = 12;
+    // the calling thread's arrays while they are not in use
+    private static final ThreadLocal<State> SPARE = new ThreadLocal<State>();
+    private final AtomicLongArray distances;
+    private final int[] queued;
+    private int round;
+
+    State(int nodeCount) {
+      this.distances = new AtomicLongArray(nodeCount);
+      for (int n = 0; n < nodeCount; n++) {
+        distances.set(n, UNREACHED);
+      }
+      this.queued = new int[nodeCount];
+    }
+
+    /**
+     * Takes the calling thread's arrays, or new ones if they are in use or
+     * too small
+     */
+    static State acquire(int nodeCount) {
+      State state = SPARE.get();
+      if (state == null) {
+        return new State(nodeCount);
+      }
+      SPARE.set(null);
+      if (state.queued.length < nodeCount) {
+        return new State(nodeCount);
+      }
+      return state;
+    }
+
+    void release() {
+      SPARE.set(this);
+    }
+
+    /**
+     * @return A number marking the nodes queued in one frontier, distinct
+     *         from the marks left by earlier frontiers
+     */
+    int nextRound() {
+      if (round == Integer.MAX_VALUE) {
+        Arrays.fill(queued, 0);
+        round = 0;
+      }
+      return ++round;
+    }
+  }
+
+  /**
+   * A growable list of node ids
+   */
+  private static final class NodeBag {
+    private int[] nodes = new int[16];
+    private int size;
+
+    void add(int node) {
+      if (size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, size * 2);
+      }
+      nodes[size++] = node;
+    }
+
+    void addAll(NodeBag other) {
+      for (int i = 0; i < other.size; i++) {
+        add(other.nodes[i]);
+      }
+    }
+
+    int get(int index) {
+      return nodes[index];
+    }
+
+    int size() {
+      return size;
+    }
+  }
+}
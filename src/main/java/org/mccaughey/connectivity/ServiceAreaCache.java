@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * A size bounded, least recently used cache of buffered service areas, keyed
+ * by network and snapped network location. Offsets along an edge are
+ * quantised, so points that snap to the same edge within about one quantum of
+ * each other share a service area. Entries only hold the network's generation
+ * number, so a network (eg an evicted tile) is not kept in memory by its
+ * cached service areas. The cache is safe to share between threads, two threads
+ * missing on the same key at once will both compute (and store) the service
+ * area.
+ *
+ * @author amacaulay
+ */
+public class ServiceAreaCache {
+
+  private final int maxEntries;
+  private final double quantum;
+  private final Map<Key, List<Geometry>> entries;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxEntries
+   *          The maximum number of service areas to hold
+   * @param quantum
+   *          The distance along an edge within which locations share a service
+   *          area
+   */
+  public ServiceAreaCache(int maxEntries, double quantum) {
+    this.maxEntries = maxEntries;
+    this.quantum = quantum;
+    this.entries = new LinkedHashMap<Key, List<Geometry>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<Key, List<Geometry>> eldest) {
+        return size() > ServiceAreaCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Looks up a service area, counting a hit or a miss
+   *
+   * @param network
+   *          The network the origin was snapped to
+   * @param origin
+   *          The snapped origin of the service area
+   * @param distances
+   *          The network distance(s) the service area is buffered at
+   * @param bufferSize
+   *          The buffer size of the service area
+   * @return The buffer polygons for the service area (one per distance), or
+   *         null if not cached
+   */
+  public List<Geometry> get(CompactNetwork network, NetworkLocation origin,
+      List<Double> distances, double bufferSize) {
+    List<Geometry> buffers;
+    synchronized (entries) {
+      buffers = entries.get(key(network, origin, distances, bufferSize));
+    }
+    if (buffers == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return buffers;
+  }
+
+  /**
+   * Stores a service area, evicting the least recently used one if the cache
+   * is full
+   *
+   * @param network
+   *          The network the origin was snapped to
+   * @param origin
+   *          The snapped origin of the service area
+   * @param distances
+   *          The network distance(s) the service area is buffered at
+   * @param bufferSize
+   *          The buffer size of the service area
+   * @param buffers
+   *          The buffer polygons for the service area
+   */
+  public void put(CompactNetwork network, NetworkLocation origin,
+      List<Double> distances, double bufferSize, List<Geometry> buffers) {
+    synchronized (entries) {
+      entries.put(key(network, origin, distances, bufferSize), buffers);
+    }
+  }
+
+  private Key key(CompactNetwork network, NetworkLocation origin,
+      List<Double> distances, double bufferSize) {
+    return new Key(network.getGeneration(), origin.getEdge(), Math.round(origin
+        .getOffset() / quantum), distances, bufferSize);
+  }
+
+  /**
+   * @return The number of lookups that found a service area
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return The number of lookups that did not find a service area
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return The number of service areas held
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return The distance along an edge within which locations share a service
+   *         area
+   */
+  public double getQuantum() {
+    return quantum;
+  }
+
+  @Override
+  public String toString() {
+    return "ServiceAreaCache[size=" + size() + ", hits=" + hits + ", misses="
+        + misses + "]";
+  }
+
+  private static final class Key {
+    // edge ids are only unique within a network (eg a tile of a larger one)
+    private final long network;
+    private final int edge;
+    private final long offset;
+    private final List<Double> distances;
+    private final double bufferSize;
+
+    Key(long network, int edge, long offset, List<Double> distances,
+        double bufferSize) {
+      this.network = network;
+      this.edge = edge;
+      this.offset = offset;
+      this.distances = distances;
+      this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return network == other.network && edge == other.edge
+          && offset == other.offset && distances.equals(other.distances)
+          && Double.compare(bufferSize, other.bufferSize) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      long bits = Double.doubleToLongBits(bufferSize);
+      int hash = 31 * (int) (network ^ (network >>> 32)) + edge;
+      hash = 31 * hash + (int) (offset ^ (offset >>> 32));
+      hash = 31 * hash + distances.hashCode();
+      return 31 * hash + (int) (bits ^ (bits >>> 32));
+    }
+  }
+}
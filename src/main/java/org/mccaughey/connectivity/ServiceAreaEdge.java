@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.graph.structure.Edge;
+import org.geotools.graph.structure.Node;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.linearref.LengthIndexedLine;
+
+/**
+ * A reached part of a network graph edge: the edge, the interval along the
+ * edge geometry that was reached and the minimum network distance to it. The
+ * traversals (NetworkBufferFJ, NetworkBufferDijkstra) store these in their
+ * service area maps, the (chopped) geometry and the feature are only built
+ * when asked for.
+ *
+ * @author amacaulay
+ */
+public final class ServiceAreaEdge {
+
+  private final Edge edge;
+  private final double edgeLength;
+  private final double start;
+  private final double end;
+  private final double distance;
+  private Geometry geometry;
+
+  /**
+   * @param edge
+   *          The graph edge
+   * @param edgeLength
+   *          The length of the edge geometry
+   * @param start
+   *          The distance along the edge geometry the reached part starts at
+   * @param end
+   *          The distance along the edge geometry the reached part ends at
+   * @param distance
+   *          The minimum network distance to the reached part
+   */
+  ServiceAreaEdge(Edge edge, double edgeLength, double start, double end,
+      double distance) {
+    this.edge = edge;
+    this.edgeLength = edgeLength;
+    this.start = Math.max(0.0, start);
+    this.end = Math.min(edgeLength, end);
+    this.distance = distance;
+  }
+
+  /**
+   * @return A record for the whole of an edge
+   */
+  static ServiceAreaEdge whole(Edge edge, double edgeLength, double distance) {
+    return new ServiceAreaEdge(edge, edgeLength, 0.0, edgeLength, distance);
+  }
+
+  /**
+   * @return A record for the part of an edge within length of one of its
+   *         nodes, null if the node is not on the edge
+   */
+  static ServiceAreaEdge chopped(Edge edge, double edgeLength, Node node,
+      double length, double distance) {
+    if (node.equals(edge.getNodeA())) {
+      return new ServiceAreaEdge(edge, edgeLength, 0.0, length, distance);
+    }
+    if (node.equals(edge.getNodeB())) {
+      return new ServiceAreaEdge(edge, edgeLength, edgeLength - length,
+          edgeLength, distance);
+    }
+    NetworkBufferFJ.LOGGER.error("Failed To Cut Edge");
+    return null;
+  }
+
+  /**
+   * @return A record for the part of an edge within length of one of its
+   *         nodes, going the other way around a looped edge
+   */
+  static ServiceAreaEdge choppedBackwards(Edge edge, double edgeLength,
+      Node node, double length, double distance) {
+    if (node.equals(edge.getNodeA())) {
+      return new ServiceAreaEdge(edge, edgeLength, edgeLength - length,
+          edgeLength, distance);
+    }
+    if (node.equals(edge.getNodeB())) {
+      return new ServiceAreaEdge(edge, edgeLength, 0.0, length, distance);
+    }
+    NetworkBufferFJ.LOGGER.error("Failed To Cut Edge");
+    return null;
+  }
+
+  /**
+   * @return The graph edge
+   */
+  public Edge getEdge() {
+    return edge;
+  }
+
+  /**
+   * @return The distance along the edge geometry the reached part starts at
+   */
+  public double getStart() {
+    return start;
+  }
+
+  /**
+   * @return The distance along the edge geometry the reached part ends at
+   */
+  public double getEnd() {
+    return end;
+  }
+
+  /**
+   * @return The length of the reached part
+   */
+  public double getLength() {
+    return end - start;
+  }
+
+  /**
+   * @return The minimum network distance to the reached part
+   */
+  public double getDistance() {
+    return distance;
+  }
+
+  /**
+   * @return true if the whole edge was reached
+   */
+  public boolean isWhole() {
+    return start <= 0.0 && end >= edgeLength;
+  }
+
+  /**
+   * @return true if the reached part includes node A of the edge
+   */
+  boolean reachesNodeA() {
+    return start <= 0.0;
+  }
+
+  /**
+   * @return true if the reached part includes node B of the edge
+   */
+  boolean reachesNodeB() {
+    return end >= edgeLength;
+  }
+
+  /**
+   * @return true if this reached part covers all of another part of the same
+   *         edge
+   */
+  public boolean contains(ServiceAreaEdge other) {
+    return start <= other.start && end >= other.end;
+  }
+
+  /**
+   * @return The geometry of the reached part, chopped from the edge geometry
+   *         the first time it is asked for
+   */
+  public Geometry getGeometry() {
+    if (geometry == null) {
+      Geometry edgeGeometry = edgeGeometry(edge);
+      if (isWhole()) {
+        geometry = edgeGeometry;
+      } else if (edgeGeometry instanceof LineString) {
+        CoordinateSequence seq = ((LineString) edgeGeometry)
+            .getCoordinateSequence();
+        double[] coordinates = LineSubstring.pack(seq);
+        double[] measures = new double[seq.size()];
+        LineSubstring.measure(coordinates, 0, seq.size(), measures);
+        geometry = LineSubstring.extract(edgeGeometry.getFactory(),
+            coordinates, measures, 0, seq.size(), start, end);
+      } else {
+        geometry = new LengthIndexedLine(edgeGeometry).extractLine(start, end);
+      }
+    }
+    return geometry;
+  }
+
+  /**
+   * Builds a feature for the reached part, with the minimum distance as the
+   * "Distance" attribute
+   *
+   * @param edgeType
+   *          The edge feature type (see NetworkBufferFJ.createEdgeFeatureType)
+   * @return The edge feature
+   */
+  public SimpleFeature toFeature(SimpleFeatureType edgeType) {
+    SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(edgeType);
+    sfb.add(getGeometry());
+    SimpleFeature feature = sfb.buildFeature(null);
+    feature.setAttribute("Distance", distance);
+    return feature;
+  }
+
+  private static Geometry edgeGeometry(Edge edge) {
+    return (Geometry) ((SimpleFeature) edge.getObject()).getDefaultGeometry();
+  }
+
+  /**
+   * @return The length of the edge geometry
+   */
+  static double edgeLength(Edge edge) {
+    return edgeGeometry(edge).getLength();
+  }
+
+  @Override
+  public String toString() {
+    return "ServiceAreaEdge[" + edge + ", " + start + "-" + end + ", "
+        + distance + "]";
+  }
+}
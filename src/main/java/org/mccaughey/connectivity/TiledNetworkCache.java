@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Prepares a network that is too large to hold in memory as a whole one tile
+ * at a time. The extent is divided into square tiles and each tile's network
+ * is built (and contracted) from the tile plus a halo, the furthest a service
+ * area (snapping included) can reach, the first time a point in the tile asks
+ * for it. So any service area from a point in a tile is found entirely on
+ * that tile's network. Prepared tiles are kept until the memory budget is
+ * used up, then the least recently used tiles are dropped. The budget also
+ * covers the working arrays each thread keeps for traversing, which are sized
+ * to the largest network prepared.
+ *
+ * Safe to share between threads, a tile asked for while it is being built is
+ * waited for rather than built twice.
+ *
+ * @author amacaulay
+ */
+public final class TiledNetworkCache {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(TiledNetworkCache.class);
+  private final SimpleFeatureSource network;
+  private final double tileSize;
+  private final double halo;
+  private final long memoryBudget;
+  private final int threads;
+  private final Map<Long, Tile> tiles;
+  private long memoryUsed;
+  private long workingMemory;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong oversized = new AtomicLong();
+
+  /**
+   * @param network
+   *          The network data set
+   * @param tileSize
+   *          The width (and height) of a tile
+   * @param halo
+   *          How far past its tile each tile's network extends, at least the
+   *          furthest a point can snap (the walk distance plus the buffer
+   *          size) plus the walk distance plus the buffer size
+   * @param memoryBudget
+   *          The (estimated) bytes of prepared tiles, and the threads' working
+   *          arrays for them, to keep
+   * @param threads
+   *          The number of threads traversing the tiles
+   */
+  public TiledNetworkCache(SimpleFeatureSource network, double tileSize,
+      double halo, long memoryBudget, int threads) {
+    this.network = network;
+    this.tileSize = tileSize;
+    this.halo = halo;
+    this.memoryBudget = memoryBudget;
+    this.threads = threads;
+    this.tiles = new LinkedHashMap<Long, Tile>(16, 0.75f, true);
+  }
+
+  /**
+   * Finds a prepared network for an origin that may be larger than a point
+   * (eg a park or a set of points). An origin within the tile of its centre
+   * uses that tile's network. An origin reaching out of its tile could have
+   * entry edges (and service areas) beyond the tile's halo, so a network is
+   * prepared for its own extent plus the halo instead, which is not kept.
+   * 
+   * @param origin
+   *          The extent of the origin
+   * @return A network covering everything the origin's service area can reach
+   * @throws IOException
+   *           If the network could not be read
+   */
+  public CompactNetwork getNetwork(Envelope origin) throws IOException {
+    Coordinate centre = origin.centre();
+    double column = Math.floor(centre.x / tileSize);
+    double row = Math.floor(centre.y / tileSize);
+    Envelope tile = new Envelope(column * tileSize, (column + 1) * tileSize,
+        row * tileSize, (row + 1) * tileSize);
+    if (tile.contains(origin)) {
+      return getNetwork(centre);
+    }
+    oversized.incrementAndGet();
+    LOGGER.info("Origin extent {} is larger than its tile, preparing a "
+        + "network for it alone", origin);
+    Envelope extent = new Envelope(origin);
+    extent.expandBy(halo);
+    CompactNetwork originNetwork = CompactNetwork.build(network, extent)
+        .contract();
+    synchronized (tiles) {
+      growWorkingMemory(originNetwork);
+      evict(null);
+    }
+    return originNetwork;
+  }
+
+  /**
+   * Finds the prepared network of the tile containing a point, building it if
+   * it is not held
+   * 
+   * @param pt
+   *          The point
+   * @return The network around the point's tile
+   * @throws IOException
+   *           If the tile's network could not be read
+   */
+  public CompactNetwork getNetwork(Coordinate pt) throws IOException {
+    final long column = (long) Math.floor(pt.x / tileSize);
+    final long row = (long) Math.floor(pt.y / tileSize);
+    Long key = (column << 32) ^ (row & 0xFFFFFFFFL);
+    Tile tile;
+    boolean build = false;
+    synchronized (tiles) {
+      tile = tiles.get(key);
+      if (tile == null) {
+        tile = new Tile(new Callable<CompactNetwork>() {
+          public CompactNetwork call() throws IOException {
+            return buildTile(column, row);
+          }
+        });
+        tiles.put(key, tile);
+        build = true;
+      }
+    }
+    if (build) {
+      misses.incrementAndGet();
+      tile.run();
+    } else {
+      hits.incrementAndGet();
+    }
+    try {
+      CompactNetwork tileNetwork = tile.get();
+      if (build) {
+        fit(key, tile, tileNetwork);
+      }
+      return tileNetwork;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      synchronized (tiles) {
+        tiles.remove(key);
+      }
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private CompactNetwork buildTile(long column, long row) throws IOException {
+    Envelope extent = new Envelope(column * tileSize, (column + 1) * tileSize,
+        row * tileSize, (row + 1) * tileSize);
+    extent.expandBy(halo);
+    CompactNetwork tileNetwork = CompactNetwork.build(network, extent)
+        .contract();
+    LOGGER.debug("Prepared tile {},{} with {} edges", new Object[] { column,
+        row, tileNetwork.getEdgeCount() });
+    return tileNetwork;
+  }
+
+  /**
+   * Accounts for a newly built tile and drops least recently used tiles until
+   * the cache is back within budget, the new tile is always kept
+   */
+  private void fit(Long key, Tile tile, CompactNetwork tileNetwork) {
+    synchronized (tiles) {
+      growWorkingMemory(tileNetwork);
+      if (tiles.get(key) != tile) {
+        return;
+      }
+      tile.bytes = tileNetwork.estimateMemory();
+      memoryUsed += tile.bytes;
+      evict(tile);
+    }
+  }
+
+  /**
+   * Each thread's working arrays grow to the largest network it traverses,
+   * guarded by the tiles map
+   */
+  private void growWorkingMemory(CompactNetwork prepared) {
+    workingMemory = Math.max(workingMemory, threads
+        * prepared.estimateWorkingMemory());
+  }
+
+  /**
+   * Drops least recently used tiles other than the one to keep until the
+   * cache is back within budget, guarded by the tiles map
+   */
+  private void evict(Tile keep) {
+    Iterator<Map.Entry<Long, Tile>> eldest = tiles.entrySet().iterator();
+    while (memoryUsed + workingMemory > memoryBudget && eldest.hasNext()) {
+      Tile candidate = eldest.next().getValue();
+      // tiles still being built are not accounted for yet
+      if (candidate != keep && candidate.bytes > 0) {
+        eldest.remove();
+        memoryUsed -= candidate.bytes;
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * @return The number of lookups that found the tile already prepared (or
+   *         being prepared)
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return The number of tiles prepared
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return The number of tiles dropped to stay within the memory budget
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return The number of origins too large for their tile, which had a
+   *         network prepared for them alone
+   */
+  public long getOversized() {
+    return oversized.get();
+  }
+
+  /**
+   * @return The estimated bytes of prepared tiles held, and of the threads'
+   *         working arrays for them
+   */
+  public long getMemoryUsed() {
+    synchronized (tiles) {
+      return memoryUsed + workingMemory;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "TiledNetworkCache[memory=" + getMemoryUsed() + "/" + memoryBudget
+        + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+        + ", oversized=" + oversized + "]";
+  }
+
+  private static final class Tile extends FutureTask<CompactNetwork> {
+    // guarded by the tiles map, 0 until the tile is built
+    private long bytes;
+
+    Tile(Callable<CompactNetwork> builder) {
+      super(builder);
+    }
+  }
+}
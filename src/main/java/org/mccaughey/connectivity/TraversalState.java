@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Arrays;
+
+/**
+ * Per thread working arrays for traversing a CompactNetwork. The arrays are
+ * sized to the whole network but only the touched entries are reset after a
+ * traversal, so the cost of a traversal stays proportional to the part of the
+ * network it reaches. Unsettled nodes are kept in a NodeHeap keyed by their
+ * current distance.
+ *
+ * Each thread keeps one set of arrays, grown to the largest network it has
+ * traversed, rather than one per network, so they are shared by the tiles a
+ * thread works on and are not left behind when a tile is dropped.
+ *
+ * @author amacaulay
+ */
+final class TraversalState {
+
+  /**
+   * The bytes of working arrays a thread keeps per node of a network
+   */
+  static final int BYTES_PER_NODE = 28;
+  /**
+   * The bytes of working arrays a thread keeps per edge of a network
+   */
+  static final int BYTES_PER_EDGE = 1;
+  // the calling thread's arrays while they are not in use
+  private static final ThreadLocal<TraversalState> SPARE = new ThreadLocal<TraversalState>();
+
+  private final double[] distance;
+  private final int[] touched;
+  private int touchedCount;
+  private final NodeHeap heap;
+  private final boolean[] edgeSeen;
+
+  TraversalState(int nodeCount, int edgeCount) {
+    distance = new double[nodeCount];
+    Arrays.fill(distance, Double.POSITIVE_INFINITY);
+    touched = new int[nodeCount];
+    heap = new NodeHeap(nodeCount);
+    edgeSeen = new boolean[edgeCount];
+  }
+
+  /**
+   * Takes the calling thread's working arrays, a traversal started while they
+   * are in use (eg by a task run while joining) gets arrays of its own
+   *
+   * @param network
+   *          The network to be traversed
+   * @return Arrays large enough for the network, to be released after use
+   */
+  static TraversalState acquire(CompactNetwork network) {
+    TraversalState state = SPARE.get();
+    int nodeCount = network.getNodeCount();
+    int edgeCount = network.getEdgeCount();
+    if (state == null) {
+      return new TraversalState(nodeCount, edgeCount);
+    }
+    SPARE.set(null);
+    if (state.distance.length < nodeCount
+        || state.edgeSeen.length < edgeCount) {
+      return new TraversalState(Math.max(nodeCount, state.distance.length),
+          Math.max(edgeCount, state.edgeSeen.length));
+    }
+    return state;
+  }
+
+  /**
+   * Resets the arrays and hands them back to the calling thread
+   */
+  void release() {
+    reset();
+    SPARE.set(this);
+  }
+
+  double getDistance(int node) {
+    return distance[node];
+  }
+
+  void setDistance(int node, double d) {
+    if (distance[node] == Double.POSITIVE_INFINITY) {
+      touched[touchedCount++] = node;
+    }
+    distance[node] = d;
+  }
+
+  int getTouchedCount() {
+    return touchedCount;
+  }
+
+  int getTouched(int index) {
+    return touched[index];
+  }
+
+  /**
+   * Records a shorter distance to a node and queues it to be settled
+   */
+  void update(int node, double d) {
+    setDistance(node, d);
+    heap.insertOrDecrease(node, d);
+  }
+
+  boolean hasUnsettled() {
+    return !heap.isEmpty();
+  }
+
+  /**
+   * Removes the unsettled node with the smallest distance
+   *
+   * @return The node id
+   */
+  int settleNearest() {
+    return heap.poll();
+  }
+
+  /**
+   * Marks an edge as seen
+   *
+   * @return true if the edge had not already been seen
+   */
+  boolean markEdge(int edge) {
+    if (edgeSeen[edge]) {
+      return false;
+    }
+    edgeSeen[edge] = true;
+    return true;
+  }
+
+  void unmarkEdge(int edge) {
+    edgeSeen[edge] = false;
+  }
+
+  /**
+   * Clears all touched entries so the state can be reused
+   */
+  void reset() {
+    for (int i = 0; i < touchedCount; i++) {
+      distance[touched[i]] = Double.POSITIVE_INFINITY;
+    }
+    touchedCount = 0;
+    heap.clear();
+  }
+}
@@ -155,33 +155,8 @@ public final class LandUseMix {
 				}
 			}
 
-			Collection<Double> areas = classificationAreas.values();
-			SimpleFeatureType sft = (SimpleFeatureType) region.getType();
-			SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
-			stb.init(sft);
-			stb.setName("landUseMixFeatureType");
-
-			for (String classification : classifications) {
-				stb.add(AttributePrefix + classification.replace("+", "_and_"),
-						Double.class);
-			}
-			// Add the land use mix attribute
-			stb.add("LandUseMixMeasure", Double.class);
-			SimpleFeatureType landUseMixFeatureType = stb.buildFeatureType();
-			SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(
-					landUseMixFeatureType);
-			sfb.addAll(region.getAttributes());
-			for (String classification : classifications) {
-				Double area = (Double) classificationAreas.get(classification);
-				if (area == null) {
-					area = 0d;
-				}
-				sfb.add(area);
-			}
-			Double landUseMixMeasure = calculateLUM(areas, totalArea,
-					classifications.size());
-			sfb.add(landUseMixMeasure);
-			return sfb.buildFeature(region.getID());
+			return buildLandUseMixFeature(region, classifications,
+					classificationAreas, totalArea);
 			// LOGGER.debug("Land Use Mix Measure: {}", landUseMixMeasure);
 		} catch (IOException e) {
 			LOGGER.error("Failed to select land use features in region: {}",
@@ -192,7 +167,53 @@ public final class LandUseMix {
 		// return region;
 	}
 
-	private static Map<String, String> getSubClassifications(
+	/**
+	 * Builds a copy of a region feature with the area of each classification
+	 * and the Land Use Mix Measure added as attributes
+	 * 
+	 * @param region
+	 *            The region
+	 * @param classifications
+	 *            The classifications of interest
+	 * @param classificationAreas
+	 *            The area of each classification within the region
+	 * @param totalArea
+	 *            The total area of all the classifications within the region
+	 * @return The region feature augmented with the summary
+	 */
+	static SimpleFeature buildLandUseMixFeature(SimpleFeature region,
+			List<String> classifications, Map classificationAreas,
+			double totalArea) {
+		Collection<Double> areas = classificationAreas.values();
+		SimpleFeatureType sft = (SimpleFeatureType) region.getType();
+		SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
+		stb.init(sft);
+		stb.setName("landUseMixFeatureType");
+
+		for (String classification : classifications) {
+			stb.add(AttributePrefix + classification.replace("+", "_and_"),
+					Double.class);
+		}
+		// Add the land use mix attribute
+		stb.add("LandUseMixMeasure", Double.class);
+		SimpleFeatureType landUseMixFeatureType = stb.buildFeatureType();
+		SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(
+				landUseMixFeatureType);
+		sfb.addAll(region.getAttributes());
+		for (String classification : classifications) {
+			Double area = (Double) classificationAreas.get(classification);
+			if (area == null) {
+				area = 0d;
+			}
+			sfb.add(area);
+		}
+		Double landUseMixMeasure = calculateLUM(areas, totalArea,
+				classifications.size());
+		sfb.add(landUseMixMeasure);
+		return sfb.buildFeature(region.getID());
+	}
+
+	static Map<String, String> getSubClassifications(
 			List<String> classifications) {
 		// TODO Auto-generated method stub
 		Map<String, String> classificationsMap = new HashMap();
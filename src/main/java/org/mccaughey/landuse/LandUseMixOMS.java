@@ -30,11 +30,18 @@ import oms3.annotations.Out;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.FeatureIterator;
+import org.mccaughey.utilities.HilbertOrder;
 import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
 /**
  * An OMS Wrapper for Land Use Mix
  * 
@@ -75,6 +82,20 @@ public class LandUseMixOMS {
   @In
   @Name("Neighbourhoods")
   public SimpleFeatureSource regionsSource;
+  /**
+   * Whether to process the regions in spatial order
+   */
+  @In
+  @Name("Spatial order")
+  @Description("Process neighbourhoods along a Hilbert curve so that neighbouring neighbourhoods are processed together")
+  public Boolean spatialOrder = Boolean.FALSE;
+  /**
+   * Whether to overlay the regions on land use held in memory
+   */
+  @In
+  @Name("In memory overlay")
+  @Description("Read the land use polygons within the neighbourhoods' bounds into memory once and summarise the neighbourhoods in parallel against them, rather than querying the land use for each neighbourhood")
+  public Boolean overlay = Boolean.FALSE;
 
   /**
    * The location of the resulting dataset (GeoJSON)
@@ -94,8 +115,27 @@ public class LandUseMixOMS {
     
     try {
       LOGGER.info("Calculating Land Use Mix");
-      FeatureIterator<SimpleFeature> regions = regionsSource.getFeatures()
-          .features();
+      if (Boolean.TRUE.equals(overlay)) {
+        SimpleFeatureCollection regionFeatures = regionsSource.getFeatures();
+        LandUseOverlay landUseOverlay = new LandUseOverlay(
+            landUseWithin(regionFeatures.getBounds()), categories,
+            classificationAttribute);
+        if (Boolean.TRUE.equals(spatialOrder)) {
+          regionFeatures = DataUtilities.collection(HilbertOrder
+              .sort(regionFeatures));
+        }
+        resultsSource = DataUtilities.source(landUseOverlay
+            .summarise(regionFeatures));
+        LOGGER.info("Completed Land Use Mix calculation");
+        return;
+      }
+      FeatureIterator<SimpleFeature> regions;
+      if (Boolean.TRUE.equals(spatialOrder)) {
+        regions = DataUtilities.collection(
+            HilbertOrder.sort(regionsSource.getFeatures())).features();
+      } else {
+        regions = regionsSource.getFeatures().features();
+      }
       SimpleFeatureSource landUse = landUseSource;
       SimpleFeatureCollection lumRegions = LandUseMix.summarise(landUse,
           regions, categories, classificationAttribute);
@@ -107,6 +147,23 @@ public class LandUseMixOMS {
     }
   }
   
+  /**
+   * Reads only the land use polygons that intersect an extent (eg the bounds
+   * of the regions), or all of them if the extent is not known
+   */
+  private SimpleFeatureCollection landUseWithin(Envelope extent)
+      throws IOException {
+    if (extent == null || extent.isNull()) {
+      return landUseSource.getFeatures();
+    }
+    FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+    String geometryPropertyName = landUseSource.getSchema()
+        .getGeometryDescriptor().getLocalName();
+    Filter filter = ff.intersects(ff.property(geometryPropertyName),
+        ff.literal(new GeometryFactory().toGeometry(extent)));
+    return landUseSource.getFeatures(filter);
+  }
+
   /*
    * Clear error messages for invalid inputs
    */
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.landuse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jsr166y.ForkJoinPool;
+import jsr166y.RecursiveAction;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Calculates the Land Use Mix Measure for many regions against land use
+ * parcels held in memory. The parcels are read once, each parcel's
+ * classification is resolved and its geometry cleaned once, and they are
+ * indexed in an STRtree, so overlapping regions share the parcels rather than
+ * each querying and clipping them again. Regions are summarised in parallel
+ * with Fork/Join, and a parcel wholly within a region is counted by its area
+ * without an intersection. The results are the same as LandUseMix.summarise.
+ * 
+ * @author amacaulay
+ */
+public class LandUseOverlay {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(LandUseOverlay.class);
+  private static final int REGIONS_PER_TASK = 4;
+  private final List<String> classifications;
+  private final STRtree index = new STRtree();
+  private int parcelCount;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Reads the land use parcels into memory, parcels of classifications that
+   * are not of interest are left out
+   * 
+   * @param landUse
+   *          The land use polygons
+   * @param classifications
+   *          The classifications of interest
+   * @param classificationAttribute
+   *          The attribute holding each parcel's classification
+   */
+  public LandUseOverlay(SimpleFeatureCollection landUse,
+      List<String> classifications, String classificationAttribute) {
+    this.classifications = classifications;
+    Map<String, String> subClassifications = LandUseMix
+        .getSubClassifications(classifications);
+    SimpleFeatureIterator parcels = landUse.features();
+    try {
+      while (parcels.hasNext()) {
+        SimpleFeature parcel = parcels.next();
+        String classification = subClassifications.get(String.valueOf(parcel
+            .getAttribute(classificationAttribute)));
+        if (classification != null) {
+          add(parcel, classification);
+        }
+      }
+    } finally {
+      parcels.close();
+    }
+    // built now, the index is only read once regions are being summarised
+    index.build();
+    LOGGER.debug("Indexed {} land use parcels", parcelCount);
+  }
+
+  private void add(SimpleFeature parcel, String classification) {
+    try {
+      Geometry geometry = ((Geometry) parcel.getDefaultGeometry()).buffer(0);
+      if (!geometry.isEmpty()) {
+        index.insert(geometry.getEnvelopeInternal(), new Parcel(geometry,
+            classification));
+        parcelCount++;
+      }
+    } catch (TopologyException e) {
+      LOGGER.debug("Ignoring parcel {}, {}", parcel.getID(), e.getMessage());
+    }
+  }
+
+  /**
+   * @param parallelism
+   *          The number of threads to summarise regions with (by default the
+   *          number of processors)
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Calculates Land Use Mix Measure for a set of regions
+   * 
+   * @param regions
+   *          A set of regions to calculate Land Use Mix for
+   * @return The set of regions augmented with summary of classification areas
+   *         and land use mix measure as attributes, in the same order
+   */
+  public SimpleFeatureCollection summarise(SimpleFeatureCollection regions) {
+    List<SimpleFeature> regionList = new ArrayList<SimpleFeature>();
+    SimpleFeatureIterator iter = regions.features();
+    try {
+      while (iter.hasNext()) {
+        regionList.add(iter.next());
+      }
+    } finally {
+      iter.close();
+    }
+    return DataUtilities.collection(summarise(regionList));
+  }
+
+  /**
+   * Calculates Land Use Mix Measure for a list of regions in parallel, a
+   * region that fails is logged and left out
+   * 
+   * @param regions
+   *          The regions to calculate Land Use Mix for
+   * @return The regions augmented with summary of classification areas and
+   *         land use mix measure as attributes, in the same order
+   */
+  public List<SimpleFeature> summarise(List<SimpleFeature> regions) {
+    SimpleFeature[] results = new SimpleFeature[regions.size()];
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(new SummariseTask(regions, results, 0, regions.size()));
+    } finally {
+      pool.shutdown();
+    }
+    List<SimpleFeature> summaries = new ArrayList<SimpleFeature>(
+        results.length);
+    for (SimpleFeature result : results) {
+      if (result != null) {
+        summaries.add(result);
+      }
+    }
+    LOGGER.debug("Summarised land use for {} of {} regions", summaries.size(),
+        regions.size());
+    return summaries;
+  }
+
+  /**
+   * Calculates Land Use Mix Measure for a single region
+   * 
+   * @param region
+   *          A region to calculate Land Use Mix for
+   * @return The region feature augmented with summary of classification areas
+   *         and land use mix measure as attributes
+   */
+  public SimpleFeature summarise(SimpleFeature region) {
+    Geometry regionGeom = ((Geometry) region.getDefaultGeometry()).buffer(0);
+    PreparedGeometry prepared = PreparedGeometryFactory.prepare(regionGeom);
+    Map<String, Double> classificationAreas = new HashMap<String, Double>();
+    double totalArea = 0.0;
+    for (Object item : index.query(regionGeom.getEnvelopeInternal())) {
+      Parcel parcel = (Parcel) item;
+      try {
+        double parcelArea;
+        if (prepared.containsProperly(parcel.geometry)) {
+          parcelArea = parcel.area;
+        } else if (prepared.intersects(parcel.geometry)) {
+          parcelArea = parcel.geometry.intersection(regionGeom).getArea();
+        } else {
+          continue;
+        }
+        totalArea += parcelArea;
+        Double area = classificationAreas.get(parcel.classification);
+        classificationAreas.put(parcel.classification, area == null
+            ? parcelArea : area + parcelArea);
+      } catch (TopologyException e) {
+        LOGGER.debug("Ignoring TopologyException, {}", e.getMessage());
+      }
+    }
+    return LandUseMix.buildLandUseMixFeature(region, classifications,
+        classificationAreas, totalArea);
+  }
+
+  /**
+   * A land use parcel, with its classification already resolved
+   */
+  private static final class Parcel {
+    private final Geometry geometry;
+    private final double area;
+    private final String classification;
+
+    Parcel(Geometry geometry, String classification) {
+      this.geometry = geometry;
+      this.area = geometry.getArea();
+      this.classification = classification;
+    }
+  }
+
+  /**
+   * Summarises a range of regions, each result goes in its own slot so tasks
+   * never share a collection
+   */
+  private final class SummariseTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final transient List<SimpleFeature> regions;
+    private final transient SimpleFeature[] results;
+    private final int start;
+    private final int end;
+
+    SummariseTask(List<SimpleFeature> regions, SimpleFeature[] results,
+        int start, int end) {
+      this.regions = regions;
+      this.results = results;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start > REGIONS_PER_TASK) {
+        int middle = (start + end) >>> 1;
+        invokeAll(new SummariseTask(regions, results, start, middle),
+            new SummariseTask(regions, results, middle, end));
+        return;
+      }
+      for (int i = start; i < end; i++) {
+        SimpleFeature region = regions.get(i);
+        try {
+          results[i] = summarise(region);
+        } catch (RuntimeException e) {
+          LOGGER.error("Land use mix failed for region " + region.getID(), e);
+        }
+      }
+    }
+  }
+}
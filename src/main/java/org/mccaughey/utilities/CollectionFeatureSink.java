@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.utilities;
+
+import org.geotools.feature.DefaultFeatureCollection;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * A FeatureSink that gathers features into an in memory collection
+ * 
+ * @author amacaulay
+ */
+public class CollectionFeatureSink implements FeatureSink {
+
+  private final DefaultFeatureCollection features;
+
+  /**
+   * Gathers features into a new collection
+   */
+  public CollectionFeatureSink() {
+    this(new DefaultFeatureCollection());
+  }
+
+  /**
+   * @param features
+   *          The collection to add features to
+   */
+  public CollectionFeatureSink(DefaultFeatureCollection features) {
+    this.features = features;
+  }
+
+  /**
+   * @return The features written so far
+   */
+  public DefaultFeatureCollection getFeatures() {
+    return features;
+  }
+
+  public void write(SimpleFeature feature) {
+    features.add(feature);
+  }
+
+  public void close() {
+  }
+}
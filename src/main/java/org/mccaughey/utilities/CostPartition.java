@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.utilities;
+
+/**
+ * Helpers for splitting a run of work items with uneven (estimated) costs into
+ * parts of roughly equal total cost, for recursive Fork/Join decomposition.
+ * Costs are held as prefix sums so the cost of any range, and the point that
+ * halves it, can be found without rescanning the items.
+ * 
+ * @author amacaulay
+ */
+public final class CostPartition {
+
+  private CostPartition() {
+  }
+
+  /**
+   * @param costs
+   *          The estimated cost of each item
+   * @return An array one longer than costs where element i is the total cost of
+   *         the first i items
+   */
+  public static double[] prefixSums(double[] costs) {
+    double[] prefix = new double[costs.length + 1];
+    for (int i = 0; i < costs.length; i++) {
+      prefix[i + 1] = prefix[i] + costs[i];
+    }
+    return prefix;
+  }
+
+  /**
+   * @return The total cost of items start (inclusive) to end (exclusive)
+   */
+  public static double cost(double[] prefix, int start, int end) {
+    return prefix[end] - prefix[start];
+  }
+
+  /**
+   * Finds the index that splits a range of items into two parts of about equal
+   * cost, each part has at least one item
+   * 
+   * @param prefix
+   *          The prefix sums of the item costs
+   * @param start
+   *          The first item of the range
+   * @param end
+   *          One past the last item of the range (at least start + 2)
+   * @return The first item of the second part
+   */
+  public static int split(double[] prefix, int start, int end) {
+    double half = (prefix[start] + prefix[end]) / 2.0;
+    int low = start + 1;
+    int high = end - 1;
+    // first index whose prefix reaches half the cost
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (prefix[middle] < half) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.utilities;
+
+import java.io.IOException;
+
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * Receives features one at a time as they are generated, so results can be
+ * written out (or otherwise handled) without holding them all in memory.
+ * Features are written from a single thread.
+ * 
+ * @author amacaulay
+ */
+public interface FeatureSink {
+
+  /**
+   * Handles a single feature
+   * 
+   * @param feature
+   *          The feature to write
+   * @throws IOException
+   */
+  void write(SimpleFeature feature) throws IOException;
+
+  /**
+   * Writes out anything still pending and releases the sink's resources
+   * 
+   * @throws IOException
+   */
+  void close() throws IOException;
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.utilities;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.geotools.geojson.feature.FeatureJSON;
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A FeatureSink that writes a GeoJSON FeatureCollection one feature at a time
+ * 
+ * @author amacaulay
+ */
+public class GeoJSONFeatureSink implements FeatureSink {
+
+  static final Logger LOGGER = LoggerFactory
+      .getLogger(GeoJSONFeatureSink.class);
+  private final FeatureJSON fjson;
+  private final Writer writer;
+  private int written;
+
+  /**
+   * Starts a FeatureCollection in a file (will overwrite existing)
+   * 
+   * @param file
+   *          The file to write to
+   * @throws IOException
+   */
+  public GeoJSONFeatureSink(File file) throws IOException {
+    this(new FileOutputStream(file));
+  }
+
+  /**
+   * Starts a FeatureCollection on a stream, the stream is closed with the sink
+   * 
+   * @param os
+   *          The stream to write to
+   * @throws IOException
+   */
+  public GeoJSONFeatureSink(OutputStream os) throws IOException {
+    this.fjson = new FeatureJSON();
+    this.writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+    writer.write("{\"type\":\"FeatureCollection\",\"features\":[");
+  }
+
+  public void write(SimpleFeature feature) throws IOException {
+    if (written > 0) {
+      writer.write(',');
+    }
+    fjson.writeFeature(feature, writer);
+    written++;
+  }
+
+  public void close() throws IOException {
+    try {
+      writer.write("]}");
+    } finally {
+      writer.close();
+    }
+    LOGGER.debug("Wrote {} features", written);
+  }
+}
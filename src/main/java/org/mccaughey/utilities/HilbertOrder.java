@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.utilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Orders features along a Hilbert curve through the centres of their
+ * envelopes, so features that are next to each other in the ordering are
+ * also close together on the ground. Processing points or regions in this
+ * order means consecutive tasks work on the same part of a network or land
+ * use layer (and its index pages and caches) instead of jumping about.
+ * 
+ * @author amacaulay
+ */
+public final class HilbertOrder {
+
+  /**
+   * The curve fills a 2^ORDER by 2^ORDER grid over the extent of the features
+   */
+  private static final int ORDER = 15;
+  private static final int CELLS = 1 << ORDER;
+
+  private HilbertOrder() {
+  }
+
+  /**
+   * Reads a feature collection into a list in Hilbert order
+   * 
+   * @param features
+   *          The features to order
+   * @return The features, sorted
+   */
+  public static List<SimpleFeature> sort(SimpleFeatureCollection features) {
+    List<SimpleFeature> list = new ArrayList<SimpleFeature>();
+    SimpleFeatureIterator iterator = features.features();
+    try {
+      while (iterator.hasNext()) {
+        list.add(iterator.next());
+      }
+    } finally {
+      iterator.close();
+    }
+    sort(list);
+    return list;
+  }
+
+  /**
+   * Sorts a list of features into Hilbert order, features without a geometry
+   * go at the end
+   * 
+   * @param features
+   *          The features to sort (in place)
+   */
+  public static void sort(List<SimpleFeature> features) {
+    int size = features.size();
+    double[] centreX = new double[size];
+    double[] centreY = new double[size];
+    boolean[] located = new boolean[size];
+    Envelope extent = new Envelope();
+    for (int i = 0; i < size; i++) {
+      Geometry geometry = (Geometry) features.get(i).getDefaultGeometry();
+      if (geometry != null && !geometry.isEmpty()) {
+        Envelope envelope = geometry.getEnvelopeInternal();
+        centreX[i] = (envelope.getMinX() + envelope.getMaxX()) / 2.0;
+        centreY[i] = (envelope.getMinY() + envelope.getMaxY()) / 2.0;
+        located[i] = true;
+        extent.expandToInclude(centreX[i], centreY[i]);
+      }
+    }
+    // the curve index in the high bits, the list position in the low bits
+    long[] keys = new long[size];
+    for (int i = 0; i < size; i++) {
+      long index = (long) CELLS * CELLS;
+      if (located[i]) {
+        index = index(cell(centreX[i], extent.getMinX(), extent.getWidth()),
+            cell(centreY[i], extent.getMinY(), extent.getHeight()));
+      }
+      keys[i] = (index << 32) | i;
+    }
+    Arrays.sort(keys);
+    List<SimpleFeature> sorted = new ArrayList<SimpleFeature>(size);
+    for (long key : keys) {
+      sorted.add(features.get((int) (key & 0xFFFFFFFFL)));
+    }
+    for (int i = 0; i < size; i++) {
+      features.set(i, sorted.get(i));
+    }
+  }
+
+  private static int cell(double value, double min, double range) {
+    if (range <= 0.0) {
+      return 0;
+    }
+    return Math.min(CELLS - 1, (int) ((value - min) / range * CELLS));
+  }
+
+  /**
+   * @return The distance along the Hilbert curve of a grid cell
+   */
+  static long index(int cellX, int cellY) {
+    int x = cellX;
+    int y = cellY;
+    long index = 0;
+    for (int s = CELLS / 2; s > 0; s /= 2) {
+      int rx = (x & s) > 0 ? 1 : 0;
+      int ry = (y & s) > 0 ? 1 : 0;
+      index += (long) s * s * ((3 * rx) ^ ry);
+      // rotate the quadrant so the curve joins up
+      if (ry == 0) {
+        if (rx == 1) {
+          x = CELLS - 1 - x;
+          y = CELLS - 1 - y;
+        }
+        int swap = x;
+        x = y;
+        y = swap;
+      }
+    }
+    return index;
+  }
+}
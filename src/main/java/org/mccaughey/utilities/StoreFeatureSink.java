@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 amacaulay
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.utilities;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A FeatureSink that adds features to a feature store in batches
+ * 
+ * @author amacaulay
+ */
+public class StoreFeatureSink implements FeatureSink {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(StoreFeatureSink.class);
+  private static final int DEFAULT_BATCH_SIZE = 500;
+  private final SimpleFeatureStore store;
+  private final int batchSize;
+  private final List<SimpleFeature> pending;
+  private int written;
+
+  /**
+   * @param store
+   *          The store to add features to
+   */
+  public StoreFeatureSink(SimpleFeatureStore store) {
+    this(store, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * @param store
+   *          The store to add features to
+   * @param batchSize
+   *          The number of features to add to the store at a time
+   */
+  public StoreFeatureSink(SimpleFeatureStore store, int batchSize) {
+    this.store = store;
+    this.batchSize = batchSize;
+    this.pending = new ArrayList<SimpleFeature>(batchSize);
+  }
+
+  public void write(SimpleFeature feature) throws IOException {
+    pending.add(feature);
+    if (pending.size() >= batchSize) {
+      flush();
+    }
+  }
+
+  public void close() throws IOException {
+    flush();
+    LOGGER.debug("Added {} features to store", written);
+  }
+
+  private void flush() throws IOException {
+    if (pending.isEmpty()) {
+      return;
+    }
+    store.addFeatures(DataUtilities.collection(pending));
+    written += pending.size();
+    pending.clear();
+  }
+}